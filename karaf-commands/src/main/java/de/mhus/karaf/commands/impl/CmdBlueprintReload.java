@@ -21,6 +21,7 @@ import org.apache.karaf.shell.api.action.lifecycle.Service;
 import de.mhus.lib.core.M;
 import de.mhus.osgi.api.karaf.AbstractCmd;
 import de.mhus.osgi.api.services.IBlueprintManager;
+import de.mhus.osgi.services.BlueprintManager;
 
 @Command(scope = "service", name = "blue-reload", description = "Reload configured services")
 @Service
@@ -30,6 +31,19 @@ public class CmdBlueprintReload extends AbstractCmd {
     public Object execute2() throws Exception {
         IBlueprintManager api = M.l(IBlueprintManager.class);
         api.reloadConfigured();
+        if (api instanceof BlueprintManager) {
+            BlueprintManager manager = (BlueprintManager) api;
+            System.out.println(
+                    "Services: "
+                            + manager.getLastCount()
+                            + " Written: "
+                            + manager.getLastWritten()
+                            + " Failed: "
+                            + manager.getLastFailed()
+                            + " Time: "
+                            + manager.getLastReloadTime()
+                            + " ms");
+        }
         System.out.println("OK");
         return null;
     }
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.impl;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.MDate;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.MOsgi;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.api.util.BundleStarterExecutor;
+
+@Command(
+        scope = "bundle",
+        name = "starters",
+        description = "List bundle starters executed after activation with timing")
+@Service
+public class CmdBundleStarters extends AbstractCmd {
+
+    @Override
+    public Object execute2() throws Exception {
+
+        ConsoleTable table = new ConsoleTable(tblOpt);
+        table.setHeaderValues("Bundle", "Starter", "Created", "Wait", "Run", "Runs", "Status");
+        for (BundleStarterExecutor.Entry entry : BundleStarterExecutor.get().getRecords()) {
+            table.addRowValues(
+                    MOsgi.getBundleCaption(entry.getBundle()),
+                    entry.getName(),
+                    MDate.toIsoDateTime(entry.getCreated()),
+                    entry.getWaitTime(),
+                    entry.getDuration(),
+                    entry.getRuns(),
+                    entry.getStatus());
+        }
+        table.print(System.out);
+
+        return null;
+    }
+}
@@ -28,6 +28,7 @@ import de.mhus.lib.core.operation.OperationDescription;
 import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.karaf.AbstractCmd;
 import de.mhus.osgi.api.services.OperationManager;
+import de.mhus.osgi.services.OperationManagerImpl;
 
 @Command(scope = "mhus", name = "operation-info", description = "Show operation information")
 @Service
@@ -49,7 +50,7 @@ public class CmdOperationInfo extends AbstractCmd {
             System.out.println("OperationManager not found");
             return null;
         }
-        Operation oper = api.getOperation(name);
+        Operation oper = OperationManagerImpl.unwrap(api.getOperation(name));
         if (oper == null) {
             System.out.println("Operation not found");
             return null;
@@ -27,6 +27,7 @@ import de.mhus.lib.core.operation.Operation;
 import de.mhus.lib.core.operation.OperationDescription;
 import de.mhus.osgi.api.karaf.AbstractCmd;
 import de.mhus.osgi.api.services.OperationManager;
+import de.mhus.osgi.services.OperationManagerImpl;
 
 @Command(scope = "mhus", name = "operation-list", description = "List all local operation")
 @Service
@@ -40,6 +41,7 @@ public class CmdOperationList extends AbstractCmd {
         ConsoleTable out = new ConsoleTable(tblOpt);
         out.setHeaderValues("PathVersion", "Caption", "Class", "Labels", "Uuid");
         for (Operation oper : M.l(OperationManager.class).getOperations()) {
+            oper = OperationManagerImpl.unwrap(oper);
             OperationDescription desc = oper.getDescription();
 
             if (desc == null)
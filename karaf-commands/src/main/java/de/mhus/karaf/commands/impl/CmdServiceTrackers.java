@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.impl;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.api.util.AbstractServiceTracker;
+
+@Command(
+        scope = "service",
+        name = "trackers",
+        description = "List service trackers with callback latency")
+@Service
+public class CmdServiceTrackers extends AbstractCmd {
+
+    @Override
+    public Object execute2() throws Exception {
+
+        ConsoleTable table = new ConsoleTable(tblOpt);
+        table.setHeaderValues(
+                "Service", "Tracker", "Running", "Async", "Calls", "Avg", "Max", "Slow", "Pending");
+        for (AbstractServiceTracker<?> tracker : AbstractServiceTracker.getTrackers()) {
+            long calls = tracker.getCallbackCount();
+            table.addRowValues(
+                    tracker.getServiceClass() == null
+                            ? "?"
+                            : tracker.getServiceClass().getCanonicalName(),
+                    tracker.getClass().getName(),
+                    tracker.isRunning(),
+                    tracker.isAsync(),
+                    calls,
+                    calls == 0 ? 0 : tracker.getCallbackTime() / calls,
+                    tracker.getCallbackMaxTime(),
+                    tracker.getSlowCount(),
+                    tracker.getPending());
+        }
+        table.print(System.out);
+        System.out.println("Executor queue: " + AbstractServiceTracker.getExecutorQueueSize());
+
+        return null;
+    }
+}
@@ -17,6 +17,7 @@ package de.mhus.karaf.commands.mhus;
 
 import org.apache.karaf.shell.api.action.Argument;
 import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 
 import de.mhus.lib.core.MApi;
@@ -24,7 +25,9 @@ import de.mhus.lib.core.console.ConsoleTable;
 import de.mhus.lib.core.mapi.IApi;
 import de.mhus.lib.core.mapi.MCfgManager;
 import de.mhus.lib.core.node.INode;
+import de.mhus.lib.mutable.KarafCfgManager;
 import de.mhus.lib.mutable.KarafMApiImpl;
+import de.mhus.lib.mutable.KarfConfigProvider;
 import de.mhus.osgi.api.karaf.AbstractCmd;
 
 @Command(scope = "mhus", name = "config-providers", description = "Show all config providers")
@@ -39,6 +42,13 @@ public class CmdConfigProviders extends AbstractCmd {
             multiValued = false)
     String ownerFilter;
 
+    @Option(
+            name = "-t",
+            aliases = "--timing",
+            description = "Show load state and timing of the ConfigurationAdmin providers",
+            required = false)
+    boolean timing = false;
+
     @Override
     public Object execute2() throws Exception {
 
@@ -48,9 +58,29 @@ public class CmdConfigProviders extends AbstractCmd {
             return null;
         }
 
+        MCfgManager api = MApi.get().getCfgManager();
+        if (timing) {
+            if (!(api instanceof KarafCfgManager)) {
+                System.out.println("Karaf config manager not set");
+                return null;
+            }
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues("PID", "Loaded", "Loads", "Time");
+            for (KarfConfigProvider provider :
+                    ((KarafCfgManager) api).getKarafProviders().values()) {
+                if (ownerFilter == null || ownerFilter.equals(provider.getName()))
+                    out.addRowValues(
+                            provider.getName(),
+                            provider.isLoaded(),
+                            provider.getLoadCount(),
+                            provider.getLoadTime());
+            }
+            out.print();
+            return null;
+        }
+
         ConsoleTable out = new ConsoleTable(tblOpt);
         out.setHeaderValues("Owner", "Key", "Value", "Type");
-        MCfgManager api = MApi.get().getCfgManager();
         for (String owner : api.getOwners()) {
             if (ownerFilter == null || ownerFilter.equals(owner)) {
                 out.addRowValues(owner, "", "", "");
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.mhus;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.MDate;
+import de.mhus.lib.core.MPeriod;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.lib.mutable.KarafHousekeeper;
+import de.mhus.lib.mutable.KarafHousekeeper.TaskEntry;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+
+@Command(
+        scope = "mhus",
+        name = "housekeeper",
+        description = "List the housekeeper tasks and their last executions")
+@Service
+public class CmdHousekeeper extends AbstractCmd {
+
+    @Override
+    public Object execute2() throws Exception {
+
+        KarafHousekeeper housekeeper = KarafHousekeeper.getCurrent();
+        if (housekeeper == null) {
+            System.out.println("Housekeeper is not running");
+            return null;
+        }
+
+        ConsoleTable table = new ConsoleTable(tblOpt);
+        table.setHeaderValues(
+                "Name",
+                "Interval",
+                "Next",
+                "Started",
+                "Stopped",
+                "Runs",
+                "Overruns",
+                "Skipped",
+                "Busy");
+        for (TaskEntry entry : housekeeper.getTasks()) {
+            table.addRowValues(
+                    entry.getName(),
+                    MPeriod.getIntervalAsStringSec(entry.getInterval()),
+                    MDate.toIsoDateTime(entry.getNext()),
+                    MDate.toIsoDateTime(entry.getLastStart()),
+                    MDate.toIsoDateTime(entry.getLastStop()),
+                    entry.getRuns(),
+                    entry.getOverruns(),
+                    entry.getSkipped(),
+                    entry.isBusy());
+        }
+        table.print(System.out);
+
+        return null;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.mhus;
+
+import java.util.LinkedList;
+import java.util.regex.Pattern;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.MDate;
+import de.mhus.lib.core.MPeriod;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.api.karaf.LogServiceTracker;
+import de.mhus.osgi.services.LogRecorderService;
+import de.mhus.osgi.services.LogRecorderService.Record;
+
+@Command(
+        scope = "mhus",
+        name = "log-recorder",
+        description =
+                "Dump or search the log flight recorder. Only events passing the pax logging"
+                        + " levels are recorded, DEBUG is not available unless the loggers are"
+                        + " set to DEBUG")
+@Service
+public class CmdLogRecorder extends AbstractCmd {
+
+    @Argument(
+            index = 0,
+            name = "cmd",
+            required = true,
+            description =
+                    "Command:\n"
+                            + " info - show recorder status\n"
+                            + " dump - print the records of the time window\n"
+                            + " search <regex> - print records with message or logger matching",
+            multiValued = false)
+    String cmd;
+
+    @Argument(
+            index = 1,
+            name = "paramteters",
+            required = false,
+            description = "Parameters",
+            multiValued = true)
+    String[] parameters;
+
+    @Option(
+            name = "-m",
+            aliases = "--minutes",
+            description = "Length of the time window in minutes, default 10",
+            required = false)
+    int minutes = 10;
+
+    @Option(
+            name = "-b",
+            aliases = "--before",
+            description = "End of the time window in minutes before now or the last record",
+            required = false)
+    int before = 0;
+
+    @Option(
+            name = "-p",
+            aliases = "--previous",
+            description = "Read the recording of the previous run",
+            required = false)
+    boolean previous = false;
+
+    @Option(
+            name = "-l",
+            aliases = "--level",
+            description = "Minimal level: ERROR, WARN, INFO, DEBUG",
+            required = false)
+    String level;
+
+    @Option(
+            name = "-n",
+            aliases = "--max",
+            description = "Maximum number of records (the newest), default 1000",
+            required = false)
+    int max = 1000;
+
+    @Option(name = "-s", aliases = "--stack", description = "Print stack traces", required = false)
+    boolean printStack = false;
+
+    @Override
+    public Object execute2() throws Exception {
+
+        LogRecorderService recorder = LogRecorderService.instance;
+        if (recorder == null) {
+            System.out.println("Recorder not active");
+            return null;
+        }
+
+        switch (cmd) {
+            case "info":
+                {
+                    System.out.println("Enabled     : " + recorder.isEnabled());
+                    System.out.println("File        : " + recorder.getFile(false));
+                    System.out.println("Previous    : " + recorder.getFile(true));
+                    System.out.println("Segments    : " + recorder.getSegments());
+                    System.out.println("Segment size: " + recorder.getSegmentSize());
+                    System.out.println("Sequence    : " + recorder.getSequence());
+                    System.out.println("Written     : " + recorder.getWritten());
+                    System.out.println("Skipped     : " + recorder.getSkipped());
+                    System.out.println(
+                            "Levels      : only events passing the pax logging levels,"
+                                    + " DEBUG is not recorded unless the loggers are set to"
+                                    + " DEBUG");
+                }
+                break;
+            case "dump":
+            case "search":
+                {
+                    if (cmd.equals("search") && (parameters == null || parameters.length == 0)) {
+                        System.out.println("Usage: search <regex>");
+                        break;
+                    }
+                    Pattern pattern =
+                            cmd.equals("search") ? Pattern.compile(parameters[0]) : null;
+                    int minLevel =
+                            level == null
+                                    ? Integer.MAX_VALUE
+                                    : LogServiceTracker.LOG_LEVEL
+                                            .valueOf(level.toUpperCase())
+                                            .toInt();
+                    if (level != null && minLevel >= LogServiceTracker.DEBUG_INT)
+                        System.out.println(
+                                "Note: DEBUG events are only recorded if the loggers are set to"
+                                        + " DEBUG");
+                    long to = 0;
+                    if (previous) {
+                        // window is relative to the last record of the previous run
+                        long[] last = new long[1];
+                        recorder.read(true, 0, 0, r -> last[0] = r.getTime());
+                        to = last[0];
+                    } else to = System.currentTimeMillis();
+                    to = to - before * MPeriod.MINUTE_IN_MILLISECONDS;
+                    long from = to - minutes * MPeriod.MINUTE_IN_MILLISECONDS;
+
+                    LinkedList<Record> list = new LinkedList<>();
+                    recorder.read(
+                            previous,
+                            from,
+                            to,
+                            r -> {
+                                if (r.getLevel() > minLevel) return;
+                                if (pattern != null
+                                        && !pattern.matcher(r.getMessage()).find()
+                                        && !pattern.matcher(r.getLogger()).find())
+                                    return;
+                                list.add(r);
+                                if (max > 0 && list.size() > max) list.removeFirst();
+                            });
+                    for (Record r : list) {
+                        System.out.println(
+                                MDate.toIsoDateTime(r.getTime())
+                                        + " "
+                                        + r.getLevelName()
+                                        + " ["
+                                        + r.getThread()
+                                        + "] "
+                                        + r.getLogger()
+                                        + " "
+                                        + r.getMessage());
+                        if (printStack && r.getStack().length() > 0)
+                            System.out.println(r.getStack());
+                    }
+                }
+                break;
+            default:
+                System.out.println("Unknown command");
+        }
+
+        return null;
+    }
+}
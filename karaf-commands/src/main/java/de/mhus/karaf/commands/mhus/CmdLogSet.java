@@ -133,7 +133,7 @@ public class CmdLogSet extends AbstractCmd {
                 break;
             case "add":
                 {
-                    for (String p : parameters) api.setTrace(p);
+                    api.setTrace(parameters);
                     MApi.updateLoggers();
                     System.out.println("OK");
                 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.mhus;
+
+import java.text.DecimalFormat;
+import java.util.List;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.console.Console;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.LogStatisticsService;
+import de.mhus.osgi.services.LogStatisticsService.LoggerRate;
+
+@Command(
+        scope = "mhus",
+        name = "logtop",
+        description = "Rank loggers by events per second, change levels with mhus:log-set")
+@Service
+public class CmdLogTop extends AbstractCmd {
+
+    @Option(
+            name = "-b",
+            aliases = {"--orderbytes"},
+            description = "order by bytes per second",
+            required = false,
+            multiValued = false)
+    boolean orderBytes;
+
+    @Option(
+            name = "-t",
+            aliases = {"--total"},
+            description = "order by total events",
+            required = false,
+            multiValued = false)
+    boolean orderTotal;
+
+    @Option(
+            name = "-w",
+            aliases = {"--window"},
+            description = "Sliding window in seconds (max 59)",
+            required = false,
+            multiValued = false)
+    int window = 10;
+
+    @Option(
+            name = "-i",
+            aliases = {"--interval"},
+            description = "Interval",
+            required = false,
+            multiValued = false)
+    long sleep = 2000;
+
+    @Option(
+            name = "-o",
+            aliases = {"--once"},
+            description = "Only once",
+            required = false,
+            multiValued = false)
+    boolean once = false;
+
+    @Option(
+            name = "--reset",
+            description = "Reset all counters",
+            required = false,
+            multiValued = false)
+    boolean reset = false;
+
+    DecimalFormat twoDForm = new DecimalFormat("0.00");
+
+    @Override
+    public Object execute2() throws Exception {
+
+        LogStatisticsService service = LogStatisticsService.instance;
+        if (service == null || !service.isEnabled()) {
+            System.out.println("Log statistics not active");
+            return null;
+        }
+        if (reset) {
+            service.reset();
+            System.out.println("OK");
+            return null;
+        }
+
+        Console console = Console.create();
+
+        while (true) {
+            if (Thread.interrupted()) break;
+            List<LoggerRate> rates = service.getRates(window);
+            if (orderBytes)
+                rates.sort(
+                        (o1, o2) -> Double.compare(o2.getBytesPerSecond(), o1.getBytesPerSecond()));
+            else if (orderTotal)
+                rates.sort((o1, o2) -> Long.compare(o2.getEvents(), o1.getEvents()));
+            else
+                rates.sort(
+                        (o1, o2) ->
+                                Double.compare(o2.getEventsPerSecond(), o1.getEventsPerSecond()));
+
+            ConsoleTable table = new ConsoleTable(tblOpt);
+            int height = console.getHeight();
+            table.setHeaderValues(
+                    "Logger",
+                    "Events/s",
+                    "Bytes/s",
+                    "Total",
+                    "Error",
+                    "Warn",
+                    "Info",
+                    "Debug",
+                    "Trace");
+            table.getHeader().get(0).weight = 1;
+            table.setMaxTableWidth(console.getWidth());
+            for (LoggerRate rate : rates) {
+                if (!once && table.size() + 3 >= height) break;
+                long[] levels = rate.getLevels();
+                table.addRowValues(
+                        rate.getName(),
+                        twoDForm.format(rate.getEventsPerSecond()),
+                        twoDForm.format(rate.getBytesPerSecond()),
+                        rate.getEvents(),
+                        levels[0],
+                        levels[1],
+                        levels[2],
+                        levels[3],
+                        levels[4]);
+            }
+
+            if (!once) {
+                console.cleanup();
+                console.setCursor(0, 0);
+            }
+            table.print(System.out);
+
+            if (once) break;
+            Thread.sleep(sleep);
+        }
+
+        return null;
+    }
+}
@@ -29,6 +29,7 @@ import de.mhus.lib.core.schedule.SchedulerTimer;
 import de.mhus.lib.core.service.TimerFactory;
 import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.scheduler.OverlapTask;
 import de.mhus.osgi.services.scheduler.TimerFactoryImpl;
 
 @Command(scope = "mhus", name = "timer-jobs", description = "Default Timer Handling")
@@ -89,8 +90,8 @@ public class CmdTimerJobs extends AbstractCmd {
                         job.getTask(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
-                        MDate.toIsoDateTime(job.getLastExecutionStop()),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStop(job)),
                         MDate.toIsoDateTime(job.getScheduledTime()),
                         MPeriod.getIntervalAsStringSec(
                                 job.getScheduledTime() - System.currentTimeMillis()),
@@ -100,13 +101,13 @@ public class CmdTimerJobs extends AbstractCmd {
                         getStatus(job),
                         job.getInterceptor(),
                         job.getLogTrailCaller(),
-                        job.isBusy());
+                        OverlapTask.isBusy(job));
             else
                 table.addRowValues(
                         job.getName(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
                         MDate.toIsoDateTime(job.getScheduledTime()),
                         MPeriod.getIntervalAsStringSec(
                                 job.getScheduledTime() - System.currentTimeMillis()),
@@ -15,6 +15,7 @@
  */
 package de.mhus.karaf.commands.mhus;
 
+import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.karaf.shell.api.action.Command;
@@ -29,6 +30,7 @@ import de.mhus.lib.core.schedule.SchedulerTimer;
 import de.mhus.lib.core.service.TimerFactory;
 import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.scheduler.OverlapTask;
 import de.mhus.osgi.services.scheduler.TimerFactoryImpl;
 
 @Command(scope = "mhus", name = "timer-list", description = "List all timer jobs")
@@ -51,8 +53,10 @@ public class CmdTimerList extends AbstractCmd {
             System.out.println("ServiceTracker is not running!");
         }
 
-        List<SchedulerJob> scheduled = scheduler.getScheduledJobs();
-        List<SchedulerJob> running = scheduler.getRunningJobs();
+        List<SchedulerJob> running = OverlapTask.getRunningJobs(scheduler);
+        // jobs with running overlap executions are listed as running
+        List<SchedulerJob> scheduled = new LinkedList<>(scheduler.getScheduledJobs());
+        scheduled.removeAll(running);
 
         ConsoleTable table = new ConsoleTable(tblOpt);
         if (all) table.setLineSpacer(true);
@@ -92,9 +96,9 @@ public class CmdTimerList extends AbstractCmd {
                         job.getTask(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
                         "Running",
-                        job.getThread().getId() + " " + job.getThread(),
+                        getThread(job),
                         "-",
                         job.getTimeoutInMinutes(),
                         job.isCanceled(),
@@ -102,15 +106,15 @@ public class CmdTimerList extends AbstractCmd {
                         getStatus(job),
                         job.getInterceptor(),
                         job.getLogTrailCaller(),
-                        job.isBusy(),
+                        OverlapTask.isBusy(job),
                         job.getUsername());
             else
                 table.addRowValues(
                         job.getName(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
-                        job.getThread().getId() + " " + job.getThread(),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
+                        getThread(job),
                         "-",
                         job.isCanceled(),
                         getStatus(job));
@@ -122,8 +126,8 @@ public class CmdTimerList extends AbstractCmd {
                         job.getTask(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
-                        MDate.toIsoDateTime(job.getLastExecutionStop()),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStop(job)),
                         MDate.toIsoDateTime(job.getScheduledTime()),
                         MPeriod.getIntervalAsStringSec(
                                 job.getScheduledTime() - System.currentTimeMillis()),
@@ -133,14 +137,14 @@ public class CmdTimerList extends AbstractCmd {
                         getStatus(job),
                         job.getInterceptor(),
                         job.getLogTrailCaller(),
-                        job.isBusy(),
+                        OverlapTask.isBusy(job),
                         job.getUsername());
             else
                 table.addRowValues(
                         job.getName(),
                         job,
                         job.getInfo(),
-                        MDate.toIsoDateTime(job.getLastExecutionStart()),
+                        MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
                         MDate.toIsoDateTime(job.getScheduledTime()),
                         MPeriod.getIntervalAsStringSec(
                                 job.getScheduledTime() - System.currentTimeMillis()),
@@ -153,6 +157,11 @@ public class CmdTimerList extends AbstractCmd {
         return null;
     }
 
+    private String getThread(SchedulerJob job) {
+        Thread thread = OverlapTask.getThread(job);
+        return thread == null ? "-" : thread.getId() + " " + thread;
+    }
+
     private String getStatus(SchedulerJob job) {
         long t = job.getNextExecutionTime();
         if (t == SchedulerJob.CALCULATE_NEXT) return "Calculate";
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.mhus;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.scheduler.SchedulerPool;
+import de.mhus.osgi.services.scheduler.TimerFactoryImpl;
+
+@Command(
+        scope = "mhus",
+        name = "timer-pools",
+        description = "List the execution pools of the scheduler priority classes")
+@Service
+public class CmdTimerPools extends AbstractCmd {
+
+    @Override
+    public Object execute2() throws Exception {
+
+        ConsoleTable table = new ConsoleTable(tblOpt);
+        table.setHeaderValues(
+                "Class",
+                "Threads",
+                "Priority",
+                "Active",
+                "Queue",
+                "Capacity",
+                "Completed",
+                "Rejected");
+        for (SchedulerPool pool : TimerFactoryImpl.instance.getPools()) {
+            table.addRowValues(
+                    pool.getName(),
+                    pool.getThreads(),
+                    pool.getPriority(),
+                    pool.getActive(),
+                    pool.getQueueDepth(),
+                    pool.getCapacity(),
+                    pool.getCompleted(),
+                    pool.getRejected());
+        }
+        table.print(System.out);
+
+        return null;
+    }
+}
@@ -37,6 +37,8 @@ import de.mhus.lib.core.schedule.SchedulerTimer;
 import de.mhus.lib.core.service.TimerFactory;
 import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.scheduler.OverlapTask;
+import de.mhus.osgi.services.scheduler.SchedulerWatchdog;
 import de.mhus.osgi.services.scheduler.TimerFactoryImpl;
 
 @Command(scope = "mhus", name = "timer-tools", description = "Default timer tools")
@@ -52,6 +54,8 @@ public class CmdTimerTools extends AbstractCmd {
                             + " timeout\n"
                             + " stacktrace\n"
                             + " timeoutstacktrace\n"
+                            + " watchdog [check] - list jobs stopped by the watchdog\n"
+                            + " overlap - list overlap policies and counters\n"
                             + " dummy\n"
                             + " schedule\n"
                             + " configure\n"
@@ -89,7 +93,7 @@ public class CmdTimerTools extends AbstractCmd {
             }
         }
         if (cmd.equals("timeout")) {
-            List<SchedulerJob> running = scheduler.getRunningJobs();
+            List<SchedulerJob> running = OverlapTask.getRunningJobs(scheduler);
 
             ConsoleTable table = new ConsoleTable(tblOpt);
             table.setHeaderValues(
@@ -105,11 +109,11 @@ public class CmdTimerTools extends AbstractCmd {
             long time = System.currentTimeMillis();
             for (SchedulerJob job : running) {
                 long timeout = job.getTimeoutInMinutes() * MPeriod.MINUTE_IN_MILLISECONDS;
-                if (timeout > 0 && timeout + job.getLastExecutionStart() <= time) {
+                if (timeout > 0 && timeout + OverlapTask.getLastExecutionStart(job) <= time) {
                     table.addRowValues(
                             job.getTask(),
                             job,
-                            MDate.toIsoDateTime(job.getLastExecutionStart()),
+                            MDate.toIsoDateTime(OverlapTask.getLastExecutionStart(job)),
                             "Running",
                             job.getDescription(),
                             job.getName(),
@@ -121,9 +125,9 @@ public class CmdTimerTools extends AbstractCmd {
             table.print(System.out);
         }
         if (cmd.equals("stacktrace")) {
-            List<SchedulerJob> running = scheduler.getRunningJobs();
+            List<SchedulerJob> running = OverlapTask.getRunningJobs(scheduler);
             for (SchedulerJob job : running) {
-                Thread thread = job.getThread();
+                Thread thread = OverlapTask.getThread(job);
                 if (thread != null) {
                     StackTraceElement[] stack = thread.getStackTrace();
                     System.out.println(
@@ -133,12 +137,12 @@ public class CmdTimerTools extends AbstractCmd {
             }
         }
         if (cmd.equals("timeoutstacktrace")) {
-            List<SchedulerJob> running = scheduler.getRunningJobs();
+            List<SchedulerJob> running = OverlapTask.getRunningJobs(scheduler);
             long time = System.currentTimeMillis();
             for (SchedulerJob job : running) {
                 long timeout = job.getTimeoutInMinutes() * MPeriod.MINUTE_IN_MILLISECONDS;
-                if (timeout > 0 && timeout + job.getLastExecutionStart() <= time) {
-                    Thread thread = job.getThread();
+                if (timeout > 0 && timeout + OverlapTask.getLastExecutionStart(job) <= time) {
+                    Thread thread = OverlapTask.getThread(job);
                     if (thread != null) {
                         StackTraceElement[] stack = thread.getStackTrace();
                         System.out.println(
@@ -149,6 +153,76 @@ public class CmdTimerTools extends AbstractCmd {
                 }
             }
         }
+        if (cmd.equals("watchdog")) {
+            SchedulerWatchdog watchdog = TimerFactoryImpl.instance.getWatchdog();
+            if (parameters != null && parameters.length > 0 && parameters[0].equals("check"))
+                watchdog.check();
+            if (!watchdog.isRunning()) System.out.println("Watchdog is not running!");
+
+            ConsoleTable table = new ConsoleTable(tblOpt);
+            table.setHeaderValues(
+                    "Name",
+                    "Info",
+                    "Started",
+                    "Detected",
+                    "Timeout",
+                    "Thread",
+                    "Escalated",
+                    "Released");
+            for (SchedulerWatchdog.TimeoutRecord record : watchdog.getRecords()) {
+                table.addRowValues(
+                        record.getName(),
+                        record.getInfo(),
+                        MDate.toIsoDateTime(record.getStart()),
+                        MDate.toIsoDateTime(record.getDetected()),
+                        record.getTimeoutInMinutes(),
+                        record.getThreadId(),
+                        record.isEscalated(),
+                        record.isReleased());
+            }
+            table.print(System.out);
+        }
+        if (cmd.equals("overlap")) {
+            ConsoleTable table = new ConsoleTable(tblOpt);
+            table.setHeaderValues(
+                    "Name",
+                    "Pool",
+                    "Policy",
+                    "Max",
+                    "Running",
+                    "Pending",
+                    "Triggered",
+                    "Started",
+                    "Skipped",
+                    "Queued",
+                    "Dropped",
+                    "Coalesced",
+                    "Released",
+                    "Peak");
+            LinkedList<SchedulerJob> jobs = new LinkedList<>(scheduler.getRunningJobs());
+            for (SchedulerJob job : scheduler.getScheduledJobs())
+                if (!jobs.contains(job)) jobs.add(job);
+            for (SchedulerJob job : jobs) {
+                OverlapTask task = OverlapTask.of(job);
+                if (task == null) continue;
+                table.addRowValues(
+                        job.getName(),
+                        task.getExecutor(),
+                        task.getPolicy(),
+                        task.getMaxConcurrent(),
+                        task.getRunning(),
+                        task.isPending(),
+                        task.getTriggered(),
+                        task.getStarted(),
+                        task.getSkipped(),
+                        task.getQueued(),
+                        task.getDropped(),
+                        task.getCoalesced(),
+                        task.getReleased(),
+                        task.getMaxRunning());
+            }
+            table.print(System.out);
+        }
         if (cmd.equals("dummy")) {
             scheduler.schedule(
                     new OnceJob(
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.mhus;
+
+import java.util.Map;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.MCast;
+import de.mhus.lib.core.MDate;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.lib.core.logging.DefaultTracer;
+import de.mhus.lib.core.logging.ITracer;
+import de.mhus.lib.core.logging.TracerFactory;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+import de.mhus.osgi.services.JaegerTracerFactory;
+import de.mhus.osgi.services.SpanCollector;
+import de.mhus.osgi.services.SpanCollector.OperationStatistics;
+import de.mhus.osgi.services.SpanCollector.SpanRecord;
+
+@Command(
+        scope = "mhus",
+        name = "tracer-spans",
+        description = "Query the in process span collector (sampled spans only)")
+@Service
+public class CmdTracerSpans extends AbstractCmd {
+
+    @Argument(
+            index = 0,
+            name = "cmd",
+            required = true,
+            description =
+                    "Command:\n"
+                            + " slow [max] - slowest spans, default 20\n"
+                            + " stats      - latency percentiles per operation in ms\n"
+                            + " info       - collector status\n"
+                            + " clear      - remove collected spans",
+            multiValued = false)
+    String cmd;
+
+    @Argument(
+            index = 1,
+            name = "paramteters",
+            required = false,
+            description = "Parameters",
+            multiValued = true)
+    String[] parameters;
+
+    @Override
+    public Object execute2() throws Exception {
+
+        ITracer tracer = ITracer.get();
+        TracerFactory factory =
+                tracer instanceof DefaultTracer
+                        ? ((DefaultTracer) tracer).getTracerFactory()
+                        : null;
+        SpanCollector collector =
+                factory instanceof JaegerTracerFactory
+                        ? ((JaegerTracerFactory) factory).getCollector()
+                        : null;
+        if (collector == null) {
+            System.out.println("Span collector not enabled");
+            return null;
+        }
+
+        switch (cmd) {
+            case "slow":
+                {
+                    int max = parameters == null ? 20 : MCast.toint(parameters[0], 20);
+                    ConsoleTable table = new ConsoleTable(tblOpt);
+                    table.setHeaderValues("Operation", "Duration", "Start", "Error", "Trace");
+                    for (SpanRecord span : collector.getSlowest(max))
+                        table.addRowValues(
+                                span.getOperation(),
+                                toMs(span.getDuration()),
+                                MDate.toIsoDateTime(span.getStart() / 1000),
+                                span.isError(),
+                                span.getTraceId());
+                    table.print(System.out);
+                }
+                break;
+            case "stats":
+                {
+                    ConsoleTable table = new ConsoleTable(tblOpt);
+                    table.setHeaderValues(
+                            "Operation", "Count", "Errors", "P50", "P90", "P99", "Max");
+                    for (Map.Entry<String, OperationStatistics> entry :
+                            collector.getStatistics().entrySet()) {
+                        OperationStatistics stat = entry.getValue();
+                        table.addRowValues(
+                                entry.getKey(),
+                                stat.getCount(),
+                                stat.getErrors(),
+                                toMs(stat.getP50()),
+                                toMs(stat.getP90()),
+                                toMs(stat.getP99()),
+                                toMs(stat.getMax()));
+                    }
+                    table.print(System.out);
+                }
+                break;
+            case "info":
+                {
+                    System.out.println("Size    : " + collector.getSize());
+                    System.out.println("Reported: " + collector.getReported());
+                }
+                break;
+            case "clear":
+                {
+                    collector.clear();
+                    System.out.println("OK");
+                }
+                break;
+            default:
+                System.out.println("Unknown command");
+        }
+
+        return null;
+    }
+
+    private String toMs(long micros) {
+        return String.valueOf(micros / 1000.0);
+    }
+}
@@ -16,7 +16,8 @@
 package de.mhus.karaf.commands.shell;
 
 import java.io.PrintStream;
-import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.karaf.log.core.LogEventFormatter;
 import org.apache.karaf.log.core.LogService;
@@ -105,11 +106,80 @@ public class CmdLogTail extends AbstractCmd {
             values = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "DEFAULT"})
     String level;
 
+    @Option(
+            name = "-b",
+            aliases = {"--buffer"},
+            description = "Size of the event buffer between logging threads and console",
+            required = false,
+            multiValued = false)
+    int bufferSize = 10000;
+
+    @Option(
+            name = "--policy",
+            description = "Overflow policy: drop (drop new events if full) or sample",
+            required = false,
+            multiValued = false)
+    @Completion(value = StringsCompleter.class, values = {"drop", "sample"})
+    String policy = "drop";
+
+    @Option(
+            name = "--sample",
+            description = "Sample rate for the sample policy, keep every n-th event",
+            required = false,
+            multiValued = false)
+    int sampleRate = 10;
+
+    @Option(
+            name = "-m",
+            aliases = {"--message"},
+            description = "Regular expression to find in the message",
+            required = false,
+            multiValued = false)
+    String message;
+
+    @Option(
+            name = "-t",
+            aliases = {"--thread"},
+            description = "Regular expression for the thread name",
+            required = false,
+            multiValued = false)
+    String thread;
+
+    @Option(
+            name = "--mdc",
+            description = "MDC key or key=value the event must contain",
+            required = false,
+            multiValued = true)
+    String[] mdc;
+
+    @Option(
+            name = "-e",
+            aliases = {"--exception"},
+            description = "Only events with exception",
+            required = false,
+            multiValued = false)
+    boolean exceptionOnly;
+
+    @Option(
+            name = "-r",
+            aliases = {"--rate"},
+            description = "Maximal events per second and logger",
+            required = false,
+            multiValued = false)
+    int rateLimit = 0;
+
+    @Option(
+            name = "--logger-sample",
+            description = "Display only every n-th event per logger",
+            required = false,
+            multiValued = false)
+    int loggerSample = 0;
+
     @Argument(
             index = 0,
             name = "logger",
             description =
-                    "The name of the logger. This can be ROOT, ALL, or the name of a logger specified in the org.ops4j.pax.logger.cfg file.",
+                    "Part of the logger name, a glob pattern (* and ?) or a regular expression with prefix re:",
             required = false,
             multiValued = false)
     String logger;
@@ -127,7 +197,17 @@ public class CmdLogTail extends AbstractCmd {
 
         LogTailContainer a = (LogTailContainer) session.get("__log_tail2");
         if (a != null) {
-            System.out.println("Close log tail");
+            LogTailRing<?> ring = a.getRing();
+            System.out.println(
+                    "Close log tail (events: "
+                            + ring.getOffered()
+                            + ", dropped: "
+                            + ring.getDropped()
+                            + ", sampled out: "
+                            + ring.getSampled()
+                            + ", rate limited: "
+                            + a.getFilter().getRateLimited()
+                            + ")");
             a.close();
             session.put("__log_tail2", null);
         } else {
@@ -135,19 +215,31 @@ public class CmdLogTail extends AbstractCmd {
             //	            entries = 50;
             //	        }
             int minLevel = getMinLevel(level);
+            LogTailFilter filter =
+                    new LogTailFilter()
+                            .setLogger(logger)
+                            .setMessage(message)
+                            .setThread(thread)
+                            .setMdc(mdc)
+                            .setExceptionOnly(exceptionOnly)
+                            .setRateLimit(rateLimit)
+                            .setSampleRate(loggerSample);
             a =
                     new LogTailContainer(
                             session,
                             entries,
                             minLevel,
                             context,
-                            logger,
+                            filter,
                             logService,
                             formatter,
                             overridenPattern,
                             noColor,
                             consoleOnly,
-                            verbose);
+                            verbose,
+                            bufferSize,
+                            LogTailRing.POLICY.valueOf(policy.toUpperCase()),
+                            sampleRate);
             session.put("__log_tail2", a);
             if (consoleOnly) {
                 LogTaggerIntercepter inter = new LogTaggerIntercepter();
@@ -248,38 +340,46 @@ public class CmdLogTail extends AbstractCmd {
 
     public static class LogTailContainer {
 
+        private static int nextId = 0;
+
         ServiceTracker<LogService, LogService> tracker = null;
         private LogService logService;
-        private String logger;
+        private LogTailFilter filter;
         private LogEventFormatter formatter;
         private String overridenPattern;
         private int entries;
         private boolean noColor;
-        private LinkedList<Thread> threadFilter;
-        private boolean closed;
+        private Set<Thread> threadFilter;
+        private volatile boolean closed;
         private Session session;
         private boolean verbose;
+        private LogTailRing<PaxLoggingEvent> ring;
+        private Thread consumer;
 
         public LogTailContainer(
                 Session session,
                 int entries,
                 int minLevel,
                 BundleContext context,
-                String logger,
+                LogTailFilter filter,
                 LogService logService,
                 LogEventFormatter formatter,
                 String overridenPattern,
                 boolean noColor,
                 boolean threadFilter,
-                boolean verbose) {
+                boolean verbose,
+                int bufferSize,
+                LogTailRing.POLICY policy,
+                int sampleRate) {
             this.logService = logService;
-            this.logger = logger;
+            this.filter = filter;
             this.formatter = formatter;
             this.overridenPattern = overridenPattern;
             this.entries = entries;
             this.noColor = noColor;
-            this.threadFilter = threadFilter ? new LinkedList<>() : null;
+            this.threadFilter = threadFilter ? ConcurrentHashMap.newKeySet() : null;
             this.verbose = verbose;
+            this.ring = new LogTailRing<>(bufferSize, policy, sampleRate);
 
             System.out.println("Start LogTail " + (threadFilter ? "for console" : ""));
 
@@ -290,11 +390,19 @@ public class CmdLogTail extends AbstractCmd {
             display(out, minLevel);
             out.flush();
 
-            PaxAppender appender = event -> printEvent(out, event, minLevel);
+            consumer = new Thread(() -> consume(out), "logtail-" + nextId());
+            consumer.setDaemon(true);
+            consumer.start();
+
+            PaxAppender appender = event -> offerEvent(event, minLevel);
             tracker = new LogServiceTracker(context, LogService.class, null, appender);
             tracker.open();
         }
 
+        private static synchronized int nextId() {
+            return nextId++;
+        }
+
         public void close() {
             if (closed) return;
             closed = true;
@@ -304,6 +412,65 @@ public class CmdLogTail extends AbstractCmd {
             tracker.close();
         }
 
+        public LogTailRing<PaxLoggingEvent> getRing() {
+            return ring;
+        }
+
+        public LogTailFilter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Called by the logging thread. Only the level, thread and logger name are checked here,
+         * content filters, formatting and writing are done by the consumer thread.
+         *
+         * @param event
+         * @param minLevel
+         */
+        protected void offerEvent(PaxLoggingEvent event, int minLevel) {
+            if (closed || event == null) return;
+            try {
+                if (event.getLevel().getSyslogEquivalent() > minLevel) return;
+                Set<Thread> threads = threadFilter;
+                if (threads != null && !threads.contains(Thread.currentThread())) return;
+                if (!filter.acceptLogger(event.getLoggerName())) return;
+                ring.offer(event);
+            } catch (NoClassDefFoundError e) {
+                // KARAF-3350: Ignore NoClassDefFoundError exceptions
+            }
+        }
+
+        protected void consume(PrintStream out) {
+            long lastDropped = 0;
+            long lastSampled = 0;
+            while (!closed) {
+                PaxLoggingEvent event = ring.take(200);
+                if (event == null) {
+                    long dropped = ring.getDropped();
+                    long sampled = ring.getSampled();
+                    if (dropped != lastDropped || sampled != lastSampled) {
+                        out.println(
+                                "*** logtail skipped "
+                                        + (dropped - lastDropped)
+                                        + " events, sampled out "
+                                        + (sampled - lastSampled));
+                        lastDropped = dropped;
+                        lastSampled = sampled;
+                    }
+                    out.flush();
+                    continue;
+                }
+                try {
+                    if (filter.acceptContent(event)) printEvent2(out, event);
+                } catch (Throwable t) {
+                    // close
+                    close();
+                    System.out.println("close logtail by exception");
+                    t.printStackTrace();
+                }
+            }
+        }
+
         protected void display(final PrintStream out, int minLevel) {
             if (entries <= 0) return;
             Iterable<PaxLoggingEvent> le = logService.getEvents(entries);
@@ -318,11 +485,7 @@ public class CmdLogTail extends AbstractCmd {
 
                 if (threadFilter != null && !threadFilter.contains(Thread.currentThread())) return;
 
-                if ((logger != null) && (event != null) && (checkIfFromRequestedLog(event))) {
-                    printEvent2(out, event);
-                } else if ((event != null) && (logger == null)) {
-                    printEvent2(out, event);
-                }
+                if (event != null && filter.accept(event)) printEvent2(out, event);
             } catch (Throwable t) {
                 // close
                 close();
@@ -354,10 +517,6 @@ public class CmdLogTail extends AbstractCmd {
             } else out.append(formatter.format(event, overridenPattern, noColor));
         }
 
-        protected boolean checkIfFromRequestedLog(PaxLoggingEvent event) {
-            return event.getLoggerName().contains(logger);
-        }
-
         protected void printEvent(PrintStream out, PaxLoggingEvent event, int minLevel) {
             try {
                 if (event != null) {
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.shell;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * Precompiled filter for log tail events. All criteria are prepared once. Only acceptLogger is
+ * called by the logging threads, all other criteria are checked by acceptContent in the consumer
+ * thread, e.g. to avoid rendering the stack trace or the message in the logging thread.
+ *
+ * <p>Logger: a plain name matches if it is contained in the logger name, a name with '*' or '?' is
+ * a glob and a name with prefix 're:' is a regular expression.
+ */
+public class LogTailFilter {
+
+    private String loggerContains;
+    private Pattern loggerPattern;
+    private Pattern messagePattern;
+    private Pattern threadPattern;
+    private String[] mdcKeys;
+    private String[] mdcValues;
+    private boolean exceptionOnly;
+    private int rateLimit;
+    private int sampleRate;
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final ConcurrentHashMap<String, LoggerState> loggers = new ConcurrentHashMap<>();
+
+    public LogTailFilter setLogger(String logger) {
+        loggerContains = null;
+        loggerPattern = null;
+        if (logger == null) return this;
+        if (logger.startsWith("re:")) loggerPattern = Pattern.compile(logger.substring(3));
+        else if (logger.indexOf('*') >= 0 || logger.indexOf('?') >= 0)
+            loggerPattern = Pattern.compile(globToRegex(logger));
+        else loggerContains = logger;
+        return this;
+    }
+
+    public LogTailFilter setMessage(String regex) {
+        messagePattern = regex == null ? null : Pattern.compile(regex);
+        return this;
+    }
+
+    public LogTailFilter setThread(String regex) {
+        threadPattern = regex == null ? null : Pattern.compile(regex);
+        return this;
+    }
+
+    /**
+     * Set MDC criteria, the definition is 'key' (must exist) or 'key=value'.
+     *
+     * @param mdc
+     * @return this
+     */
+    public LogTailFilter setMdc(String[] mdc) {
+        if (mdc == null || mdc.length == 0) {
+            mdcKeys = null;
+            mdcValues = null;
+            return this;
+        }
+        mdcKeys = new String[mdc.length];
+        mdcValues = new String[mdc.length];
+        for (int i = 0; i < mdc.length; i++) {
+            int pos = mdc[i].indexOf('=');
+            if (pos < 0) mdcKeys[i] = mdc[i];
+            else {
+                mdcKeys[i] = mdc[i].substring(0, pos);
+                mdcValues[i] = mdc[i].substring(pos + 1);
+            }
+        }
+        return this;
+    }
+
+    public LogTailFilter setExceptionOnly(boolean exceptionOnly) {
+        this.exceptionOnly = exceptionOnly;
+        return this;
+    }
+
+    /**
+     * Maximal events per second and logger, 0 is unlimited.
+     *
+     * @param rateLimit
+     * @return this
+     */
+    public LogTailFilter setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * Accept only every n-th event per logger, 0 or 1 will accept all.
+     *
+     * @param sampleRate
+     * @return this
+     */
+    public LogTailFilter setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public boolean accept(PaxLoggingEvent event) {
+        return acceptLogger(event.getLoggerName()) && acceptContent(event);
+    }
+
+    /**
+     * Check the logger name only, this is cheap and can be called by the logging threads.
+     *
+     * @param name
+     * @return true if the logger name matches
+     */
+    public boolean acceptLogger(String name) {
+        if (name == null) name = "";
+        if (loggerContains != null && !name.contains(loggerContains)) return false;
+        if (loggerPattern != null && !loggerPattern.matcher(name).matches()) return false;
+        return true;
+    }
+
+    /**
+     * Check all criteria except the logger name. Sampling and rate limits are counted here, call
+     * it once per event.
+     *
+     * @param event
+     * @return true if the event should be displayed
+     */
+    public boolean acceptContent(PaxLoggingEvent event) {
+        String name = event.getLoggerName();
+        if (name == null) name = "";
+        if (exceptionOnly) {
+            String[] rep = event.getThrowableStrRep();
+            if (rep == null || rep.length == 0) return false;
+        }
+        if (threadPattern != null) {
+            String thread = event.getThreadName();
+            if (thread == null || !threadPattern.matcher(thread).matches()) return false;
+        }
+        if (mdcKeys != null) {
+            @SuppressWarnings("rawtypes")
+            Map properties = event.getProperties();
+            if (properties == null) return false;
+            for (int i = 0; i < mdcKeys.length; i++) {
+                Object value = properties.get(mdcKeys[i]);
+                if (value == null) return false;
+                if (mdcValues[i] != null && !mdcValues[i].equals(String.valueOf(value)))
+                    return false;
+            }
+        }
+        if (messagePattern != null) {
+            String msg = event.getRenderedMessage();
+            if (msg == null || !messagePattern.matcher(msg).find()) return false;
+        }
+        if (rateLimit > 0 || sampleRate > 1) {
+            LoggerState state = loggers.computeIfAbsent(name, n -> new LoggerState());
+            if (sampleRate > 1 && state.seen.incrementAndGet() % sampleRate != 0) {
+                sampledOut.incrementAndGet();
+                return false;
+            }
+            if (rateLimit > 0 && !state.tryAcquire(rateLimit)) {
+                rateLimited.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    public static String globToRegex(String glob) {
+        StringBuilder out = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    out.append(".*");
+                    break;
+                case '?':
+                    out.append('.');
+                    break;
+                default:
+                    if ("\\.[]{}()+-^$|".indexOf(c) >= 0) out.append('\\');
+                    out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static class LoggerState {
+        private final AtomicLong seen = new AtomicLong();
+        // second in the upper and count in the lower 32 bits, updated together
+        private final AtomicLong window = new AtomicLong();
+
+        private boolean tryAcquire(int limit) {
+            long now = (System.currentTimeMillis() / 1000) & 0xffffffffL;
+            while (true) {
+                long current = window.get();
+                long next;
+                if (current >>> 32 == now) {
+                    if ((current & 0xffffffffL) >= limit) return false;
+                    next = current + 1;
+                } else next = (now << 32) | 1;
+                if (window.compareAndSet(current, next)) return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.karaf.commands.shell;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer with multiple producers and a single consumer. Producers never
+ * block, if the buffer is full the element will be dropped and counted.
+ *
+ * @param <T> Type of the elements
+ */
+public class LogTailRing<T> {
+
+    public enum POLICY {
+        /** Drop new elements if the buffer is full */
+        DROP,
+        /** Accept only every n-th element if the buffer is more then half full */
+        SAMPLE
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong offered = new AtomicLong();
+    private final POLICY policy;
+    private final int sampleRate;
+    private volatile Thread consumer;
+
+    public LogTailRing(int capacity, POLICY policy, int sampleRate) {
+        this.capacity = Math.max(16, capacity);
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.policy = policy == null ? POLICY.DROP : policy;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Add the element, never blocks.
+     *
+     * @param element
+     * @return false if the element was dropped
+     */
+    public boolean offer(T element) {
+        long cnt = offered.incrementAndGet();
+        while (true) {
+            long h = head.get();
+            long size = h - tail;
+            if (size >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (policy == POLICY.SAMPLE && size > capacity / 2 && cnt % sampleRate != 0) {
+                sampled.incrementAndGet();
+                return false;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                slots.set((int) (h % capacity), element);
+                break;
+            }
+        }
+        Thread c = consumer;
+        if (c != null) LockSupport.unpark(c);
+        return true;
+    }
+
+    /**
+     * Return the next element or null if the buffer is empty. Only one thread is allowed to poll.
+     *
+     * @return The element or null
+     */
+    public T poll() {
+        long t = tail;
+        if (t >= head.get()) return null;
+        int index = (int) (t % capacity);
+        T element = slots.get(index);
+        if (element == null) return null; // claimed but not written yet
+        slots.set(index, null);
+        tail = t + 1;
+        return element;
+    }
+
+    /**
+     * Wait for the next element. Only one thread is allowed to take.
+     *
+     * @param timeoutMs Maximal time to wait
+     * @return The element or null
+     */
+    public T take(long timeoutMs) {
+        T element = poll();
+        if (element != null) return element;
+        consumer = Thread.currentThread();
+        try {
+            element = poll();
+            if (element != null) return element;
+            LockSupport.parkNanos(this, timeoutMs * 1000000);
+            return poll();
+        } finally {
+            consumer = null;
+        }
+    }
+
+    public int size() {
+        return (int) (head.get() - tail);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public POLICY getPolicy() {
+        return policy;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSampled() {
+        return sampled.get();
+    }
+
+    public long getOffered() {
+        return offered.get();
+    }
+}
@@ -40,10 +40,8 @@ import org.osgi.service.event.EventHandler;
 import de.mhus.lib.annotations.pojo.Hidden;
 import de.mhus.lib.core.MApi;
 import de.mhus.lib.core.MFile;
-import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.MString;
 import de.mhus.lib.core.MSystem;
-import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.logging.Log;
 import de.mhus.lib.core.service.TimerFactory;
 import de.mhus.lib.core.service.TimerIfc;
@@ -52,6 +50,7 @@ import de.mhus.lib.core.util.Version;
 import de.mhus.lib.errors.NotFoundException;
 import de.mhus.lib.errors.NotFoundRuntimeException;
 import de.mhus.osgi.api.services.BundleStarter;
+import de.mhus.osgi.api.util.BundleStarterExecutor;
 import de.mhus.osgi.api.util.OsgiBundleClassLoader;
 
 public class MOsgi {
@@ -359,52 +358,7 @@ public class MOsgi {
     public static void runAfterActivation(ComponentContext ctx, BundleStarter task) {
 
         if (ctx == null || task == null) return;
-        Bundle bundle = ctx.getUsingBundle();
-
-        new MThread(
-                        new Runnable() {
-
-                            @Override
-                            public void run() {
-                                if (bundle == null) {
-                                    task.log().i("executing bundle is null");
-                                    // can't wait for end of activation
-                                    MThread.sleep(2000);
-                                } else {
-                                    // wait for end of activation
-                                    long start = System.currentTimeMillis();
-                                    while (true) {
-                                        MThread.sleep(300);
-                                        int state = bundle.getState();
-                                        if (state == Bundle.STOPPING
-                                                || state == Bundle.UNINSTALLED) {
-                                            task.log().i("activation terminated");
-                                            return;
-                                        }
-                                        if (state == Bundle.ACTIVE) break;
-                                        if (MPeriod.isTimeOut(start, task.getTimeout())) {
-                                            task.log().i("activation timeout");
-                                            if (task.exitOnTimeout()) return;
-                                            else break;
-                                        }
-                                    }
-                                }
-
-                                try {
-                                    task.log().d("start");
-                                    task.run();
-                                    while (task.isRetry()) {
-                                        MThread.sleep(2000);
-                                        task.log().d("retry");
-                                        task.run();
-                                    }
-                                } catch (Throwable t) {
-                                    task.log().e(t);
-                                }
-                            }
-                        },
-                        "Starter:" + getBundleCaption(ctx.getUsingBundle()))
-                .start();
+        BundleStarterExecutor.get().execute(ctx.getUsingBundle(), task);
     }
 
     /**
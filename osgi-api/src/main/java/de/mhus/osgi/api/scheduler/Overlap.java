@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.api.scheduler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Define the behavior if a scheduled service is still busy at the next due time. Is used by
+ * SchedulerServiceAdapter in addition to the Interval annotation.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Overlap {
+
+    enum POLICY {
+        /** Ignore the trigger */
+        SKIP,
+        /**
+         * Execute the first trigger while busy after the current run, further triggers are
+         * dropped
+         */
+        QUEUE_ONE,
+        /** Execute in parallel up to 'concurrent' runs */
+        CONCURRENT,
+        /**
+         * Merge all triggers while busy into one run after the current run, the run gets the
+         * environment of the latest trigger
+         */
+        COALESCE
+    }
+
+    POLICY value() default POLICY.SKIP;
+
+    /**
+     * Maximum number of parallel runs for policy CONCURRENT.
+     *
+     * @return Maximum parallel runs
+     */
+    int concurrent() default 1;
+}
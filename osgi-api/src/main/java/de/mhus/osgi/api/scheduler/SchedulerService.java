@@ -58,4 +58,25 @@ public interface SchedulerService extends ITimerTask {
      * @return The user name to run with.
      */
     String getUsername();
+
+    /**
+     * Return the policy to use if the service is still busy at the next due time or null to use
+     * the default 'skip', the behavior of the scheduler for a busy job. Possible values are skip,
+     * queue, coalesce or concurrent:n. Overwrites the service property 'overlap'.
+     *
+     * @return The overlap policy or null
+     */
+    default String getOverlapPolicy() {
+        return null;
+    }
+
+    /**
+     * Return the name of the priority class or null. Services of a priority class are executed in
+     * the isolated pool of the class. Overwrites the service property 'priority'.
+     *
+     * @return The priority class or null
+     */
+    default String getPriorityClass() {
+        return null;
+    }
 }
@@ -65,6 +65,20 @@ public abstract class SchedulerServiceAdapter extends MLog implements SchedulerS
         return null;
     }
 
+    @Override
+    public String getOverlapPolicy() {
+        Overlap overlap = getClass().getAnnotation(Overlap.class);
+        if (overlap == null) return null;
+        switch (overlap.value()) {
+            case CONCURRENT:
+                return "concurrent:" + overlap.concurrent();
+            case QUEUE_ONE:
+                return "queue";
+            default:
+                return overlap.value().name().toLowerCase();
+        }
+    }
+
     @Override
     public SchedulerJob getWrappedJob() {
         return null;
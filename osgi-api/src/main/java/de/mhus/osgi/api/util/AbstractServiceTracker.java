@@ -15,18 +15,52 @@
  */
 package de.mhus.osgi.api.util;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
+import de.mhus.lib.core.logging.Log;
 import de.mhus.osgi.api.MOsgi;
 
 public abstract class AbstractServiceTracker<T> {
 
+    private static final Log log = Log.getLog(AbstractServiceTracker.class);
+
+    /** Callbacks running longer will be logged as warning */
+    public static long SLOW_HANDLER_MS = 1000;
+
+    private static ThreadPoolExecutor executor;
+    /** The queue executed by the current thread, set while a callback is running */
+    private static final ThreadLocal<SerialQueue> currentQueue = new ThreadLocal<>();
+    private static Set<AbstractServiceTracker<?>> trackers =
+            Collections.synchronizedSet(
+                    Collections.newSetFromMap(
+                            new WeakHashMap<AbstractServiceTracker<?>, Boolean>()));
+
     private BundleContext context;
     protected Class<T> clazz;
+    private boolean async = false;
+    private Map<ServiceReference<T>, SerialQueue> queues = new HashMap<>();
+    private AtomicLong callbackCount = new AtomicLong();
+    private AtomicLong callbackTime = new AtomicLong();
+    private AtomicLong callbackMaxTime = new AtomicLong();
+    private AtomicLong slowCount = new AtomicLong();
+
     private ServiceTrackerCustomizer<T, T> customizer =
             new ServiceTrackerCustomizer<T, T>() {
 
@@ -35,7 +69,7 @@ public abstract class AbstractServiceTracker<T> {
                     T service = context.getService(reference);
                     if (service != null && service instanceof ReferenceInject)
                         ((ReferenceInject) service).setReference(reference);
-                    AbstractServiceTracker.this.addService(reference, service);
+                    dispatch(reference, "add", () -> addService(reference, service), false);
                     return service;
                 }
 
@@ -43,12 +77,12 @@ public abstract class AbstractServiceTracker<T> {
                 public void modifiedService(ServiceReference<T> reference, T service) {
                     if (service != null && service instanceof ReferenceInject)
                         ((ReferenceInject) service).setReference(reference);
-                    AbstractServiceTracker.this.modifyService(reference, service);
+                    dispatch(reference, "modify", () -> modifyService(reference, service), false);
                 }
 
                 @Override
                 public void removedService(ServiceReference<T> reference, T service) {
-                    AbstractServiceTracker.this.removeService(reference, service);
+                    dispatch(reference, "remove", () -> removeService(reference, service), true);
                 }
             };
     private ServiceTracker<T, T> tracker;
@@ -75,6 +109,203 @@ public abstract class AbstractServiceTracker<T> {
         }
         this.context = context;
         this.clazz = clazz;
+        trackers.add(this);
+    }
+
+    /**
+     * Execute the callbacks asynchronous in a shared executor. The callbacks for one service
+     * reference are executed in order. The removal is executed synchronous after the pending
+     * callbacks of the reference, the service is not used after it is unregistered. If the removal
+     * is triggered by a callback, e.g. a service unregisters itself, it is queued behind the
+     * pending callbacks instead, the removal never blocks a callback thread. Must be set before
+     * start().
+     *
+     * @param async
+     * @return this
+     */
+    public AbstractServiceTracker<T> setAsync(boolean async) {
+        this.async = async;
+        return this;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    private void dispatch(
+            ServiceReference<T> reference, String action, Runnable callback, boolean last) {
+        if (!async) {
+            measure(reference, action, callback);
+            return;
+        }
+        SerialQueue queue;
+        synchronized (queues) {
+            if (last) queue = queues.remove(reference);
+            else queue = queues.computeIfAbsent(reference, k -> new SerialQueue());
+        }
+        if (last) {
+            // waiting in a callback thread could wait for itself or starve the executor
+            if (queue != null && currentQueue.get() != null) {
+                queue.add(() -> measure(reference, action, callback));
+                return;
+            }
+            if (queue != null) queue.await();
+            measure(reference, action, callback);
+            return;
+        }
+        queue.add(() -> measure(reference, action, callback));
+    }
+
+    private void measure(ServiceReference<T> reference, String action, Runnable callback) {
+        long start = System.currentTimeMillis();
+        try {
+            callback.run();
+        } catch (Throwable t) {
+            log.w("service tracker callback failed", clazz, action, reference, t);
+        } finally {
+            long time = System.currentTimeMillis() - start;
+            callbackCount.incrementAndGet();
+            callbackTime.addAndGet(time);
+            callbackMaxTime.accumulateAndGet(time, Math::max);
+            if (time > SLOW_HANDLER_MS) {
+                slowCount.incrementAndGet();
+                log.w(
+                        "slow service tracker callback",
+                        clazz,
+                        action,
+                        MOsgi.getBundleCaption(reference.getBundle()),
+                        time);
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            AtomicInteger cnt = new AtomicInteger();
+            int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+            executor =
+                    new ThreadPoolExecutor(
+                            threads,
+                            threads,
+                            60,
+                            TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(1000),
+                            r -> {
+                                Thread t = new Thread(r, "ServiceTracker-" + cnt.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            },
+                            // back pressure: execute in the framework thread if the queue is full
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Return all existing trackers.
+     *
+     * @return List of trackers
+     */
+    public static List<AbstractServiceTracker<?>> getTrackers() {
+        synchronized (trackers) {
+            return new LinkedList<>(trackers);
+        }
+    }
+
+    /**
+     * Return the number of waiting callbacks in the shared executor.
+     *
+     * @return Queue size
+     */
+    public static int getExecutorQueueSize() {
+        ThreadPoolExecutor e = executor;
+        return e == null ? 0 : e.getQueue().size();
+    }
+
+    public Class<T> getServiceClass() {
+        return clazz;
+    }
+
+    public long getCallbackCount() {
+        return callbackCount.get();
+    }
+
+    public long getCallbackTime() {
+        return callbackTime.get();
+    }
+
+    public long getCallbackMaxTime() {
+        return callbackMaxTime.get();
+    }
+
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    public int getPending() {
+        int cnt = 0;
+        synchronized (queues) {
+            for (SerialQueue queue : queues.values()) cnt += queue.size();
+        }
+        return cnt;
+    }
+
+    /** Executes the callbacks of one service reference in order. */
+    private static class SerialQueue implements Runnable {
+
+        private LinkedList<Runnable> tasks = new LinkedList<>();
+        private boolean running;
+
+        public void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running) return;
+                running = true;
+            }
+            getExecutor().execute(this);
+        }
+
+        public synchronized int size() {
+            return tasks.size();
+        }
+
+        /** Wait until all added tasks are executed. */
+        public synchronized void await() {
+            boolean interrupted = false;
+            while (running || !tasks.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public void run() {
+            // the caller runs policy can execute a queue inside of another callback
+            SerialQueue outer = currentQueue.get();
+            currentQueue.set(this);
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            running = false;
+                            notifyAll();
+                            return;
+                        }
+                    }
+                    task.run();
+                }
+            } finally {
+                if (outer == null) currentQueue.remove();
+                else currentQueue.set(outer);
+            }
+        }
     }
 
     public AbstractServiceTracker<T> start(ComponentContext ctx) {
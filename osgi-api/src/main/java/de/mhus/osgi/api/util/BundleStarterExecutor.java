@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.api.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+
+import de.mhus.lib.core.MPeriod;
+import de.mhus.lib.core.MSystem;
+import de.mhus.lib.core.logging.Log;
+import de.mhus.osgi.api.MOsgi;
+import de.mhus.osgi.api.services.BundleStarter;
+
+/**
+ * Executes bundle starters as soon as the bundle becomes active. The bundle state is observed by a
+ * bundle listener, starters are executed by a shared pool. Retries are delayed with exponential
+ * backoff. The pools are shut down if this bundle stops.
+ */
+public class BundleStarterExecutor {
+
+    private static final Log log = Log.getLog(BundleStarterExecutor.class);
+
+    public static final long RETRY_DELAY = 2000;
+    public static final long RETRY_MAX_DELAY = MPeriod.MINUTE_IN_MILLISECONDS;
+    public static final int MAX_RECORDS = 500;
+    public static final long POLL_INTERVAL = 1000;
+
+    private static BundleStarterExecutor instance;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private Map<Long, List<Entry>> waiting = new HashMap<>();
+    private LinkedList<Entry> records = new LinkedList<>();
+    private BundleContext context;
+    private SynchronousBundleListener listener;
+
+    public static synchronized BundleStarterExecutor get() {
+        if (instance == null) instance = new BundleStarterExecutor();
+        return instance;
+    }
+
+    /** Stop the pools and the bundle listener. */
+    public static synchronized void shutdown() {
+        if (instance == null) return;
+        instance.close();
+        instance = null;
+    }
+
+    private BundleStarterExecutor() {
+        AtomicInteger cnt = new AtomicInteger();
+        executor =
+                Executors.newCachedThreadPool(
+                        r -> {
+                            Thread t = new Thread(r, "Starter-" + cnt.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        });
+        timer =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "Starter-Timer");
+                            t.setDaemon(true);
+                            return t;
+                        });
+    }
+
+    public void execute(Bundle bundle, BundleStarter task) {
+        Entry entry = new Entry(bundle, task);
+        addRecord(entry);
+
+        if (bundle == null) {
+            task.log().i("executing bundle is null");
+            // can't wait for end of activation
+            timer.schedule(() -> start(entry), 2000, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        boolean listening;
+        synchronized (waiting) {
+            listening = startListening();
+            waiting.computeIfAbsent(bundle.getBundleId(), k -> new LinkedList<>()).add(entry);
+        }
+        // check state after registration to not miss an event
+        if (!checkState(bundle)) {
+            timer.schedule(() -> onTimeout(entry), task.getTimeout(), TimeUnit.MILLISECONDS);
+            if (!listening) poll(bundle);
+        }
+    }
+
+    private boolean startListening() {
+        if (listener != null) return true;
+        Bundle own = FrameworkUtil.getBundle(MOsgi.class);
+        BundleContext ctx = own == null ? null : own.getBundleContext();
+        if (ctx == null) return false;
+        long ownId = own.getBundleId();
+        listener =
+                new SynchronousBundleListener() {
+                    @Override
+                    public void bundleChanged(BundleEvent event) {
+                        if (event.getType() == BundleEvent.STOPPING
+                                && event.getBundle().getBundleId() == ownId) {
+                            shutdown();
+                            return;
+                        }
+                        checkState(event.getBundle());
+                    }
+                };
+        ctx.addBundleListener(listener);
+        context = ctx;
+        return true;
+    }
+
+    /** Fallback if the bundle listener can't be registered. */
+    private void poll(Bundle bundle) {
+        timer.schedule(
+                () -> {
+                    boolean isWaiting;
+                    synchronized (waiting) {
+                        isWaiting = waiting.containsKey(bundle.getBundleId());
+                    }
+                    if (isWaiting && !checkState(bundle)) poll(bundle);
+                },
+                POLL_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void close() {
+        synchronized (waiting) {
+            if (listener != null) {
+                try {
+                    context.removeBundleListener(listener);
+                } catch (Throwable t) {
+                    log.t(t);
+                }
+                listener = null;
+                context = null;
+            }
+            waiting.clear();
+        }
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+
+    private boolean checkState(Bundle bundle) {
+        int state = bundle.getState();
+        if (state == Bundle.ACTIVE) {
+            for (Entry entry : remove(bundle)) start(entry);
+            return true;
+        }
+        if (state == Bundle.STOPPING || state == Bundle.UNINSTALLED) {
+            for (Entry entry : remove(bundle)) {
+                entry.task.log().i("activation terminated");
+                entry.status = "terminated";
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private List<Entry> remove(Bundle bundle) {
+        synchronized (waiting) {
+            List<Entry> list = waiting.remove(bundle.getBundleId());
+            return list == null ? new LinkedList<>() : list;
+        }
+    }
+
+    private void onTimeout(Entry entry) {
+        synchronized (waiting) {
+            List<Entry> list = waiting.get(entry.bundle.getBundleId());
+            if (list == null || !list.remove(entry)) return;
+            if (list.isEmpty()) waiting.remove(entry.bundle.getBundleId());
+        }
+        entry.task.log().i("activation timeout");
+        if (entry.task.exitOnTimeout()) entry.status = "timeout";
+        else start(entry);
+    }
+
+    private void start(Entry entry) {
+        // wait time until the first start, retries are not included
+        if (entry.activated == 0) entry.activated = System.currentTimeMillis();
+        entry.status = "running";
+        executor.execute(() -> run(entry));
+    }
+
+    private void run(Entry entry) {
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName("Starter:" + MOsgi.getBundleCaption(entry.bundle));
+        long start = System.currentTimeMillis();
+        try {
+            if (entry.runs == 0) entry.task.log().d("start");
+            else entry.task.log().d("retry", entry.runs);
+            entry.runs++;
+            entry.task.run();
+        } catch (Throwable t) {
+            entry.task.log().e(t);
+            entry.status = "error";
+            return;
+        } finally {
+            entry.duration += System.currentTimeMillis() - start;
+            thread.setName(threadName);
+        }
+        if (entry.task.isRetry()) {
+            long delay = Math.min(RETRY_MAX_DELAY, RETRY_DELAY << Math.min(entry.runs - 1, 16));
+            entry.status = "retry";
+            timer.schedule(() -> start(entry), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        entry.finished = System.currentTimeMillis();
+        entry.status = "done";
+        log.d(
+                "starter finished",
+                entry.getName(),
+                "wait",
+                entry.getWaitTime(),
+                "run",
+                entry.duration,
+                "runs",
+                entry.runs);
+    }
+
+    private void addRecord(Entry entry) {
+        synchronized (records) {
+            records.add(entry);
+            while (records.size() > MAX_RECORDS) records.removeFirst();
+        }
+    }
+
+    /**
+     * Return the last registered starters with timing information.
+     *
+     * @return List of starter records
+     */
+    public List<Entry> getRecords() {
+        synchronized (records) {
+            return new LinkedList<>(records);
+        }
+    }
+
+    public static class Entry {
+
+        private Bundle bundle;
+        private BundleStarter task;
+        private long created = System.currentTimeMillis();
+        private volatile long activated;
+        private volatile long finished;
+        private volatile long duration;
+        private volatile int runs;
+        private volatile String status = "waiting";
+
+        Entry(Bundle bundle, BundleStarter task) {
+            this.bundle = bundle;
+            this.task = task;
+        }
+
+        public String getName() {
+            return MSystem.getClassName(task.getClass());
+        }
+
+        public Bundle getBundle() {
+            return bundle;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Time between registration and first start in milliseconds or -1 if not started.
+         *
+         * @return Wait time
+         */
+        public long getWaitTime() {
+            return activated == 0 ? -1 : activated - created;
+        }
+
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * Sum of all run durations in milliseconds.
+         *
+         * @return Run time
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public int getRuns() {
+            return runs;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+    }
+}
@@ -19,16 +19,37 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkUtil;
+
+import de.mhus.lib.core.parser.CompiledString;
 import de.mhus.lib.core.parser.StringCompiler;
 import de.mhus.lib.errors.MException;
+import de.mhus.lib.errors.NotFoundException;
 
 public class TemplateUtils {
 
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_CACHE_SIZE = 1000;
+
+    private static Map<String, Template> cache = new ConcurrentHashMap<>();
+    private static BundleListener listener;
+    private static ThreadLocal<StringBuilder> buffer =
+            ThreadLocal.withInitial(() -> new StringBuilder());
+
     /**
      * The method will close output and input stream.
      *
@@ -68,18 +89,8 @@ public class TemplateUtils {
             HashMap<String, Object> properties,
             boolean close)
             throws MException {
-        Scanner scanner = null;
         try {
-            // read it line at a time so that we can use the platform line ending when we write it
-            // out
-            scanner = new Scanner(templateIs);
-
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                line = filter(line, properties);
-                out.println(line);
-            }
-            scanner.close();
+            out.print(Template.parse(templateIs).render(properties));
         } finally {
             if (close) {
                 safeClose(out);
@@ -88,9 +99,85 @@ public class TemplateUtils {
         }
     }
 
-    private static String filter(String line, HashMap<String, Object> props) throws MException {
-        if (!line.contains("$")) return line;
-        return StringCompiler.compile(line).execute(props);
+    /**
+     * Render a template resource of the owner class. The compiled template is cached by resource
+     * URL and bundle modification.
+     *
+     * @param owner The class to load the resource from
+     * @param resource The resource name relative to the owner
+     * @param properties
+     * @return The rendered content
+     * @throws MException
+     */
+    public static String render(Class<?> owner, String resource, Map<String, Object> properties)
+            throws MException {
+        return getTemplate(owner, resource).render(properties);
+    }
+
+    /**
+     * Return the compiled template resource of the owner class from cache or load it. The cached
+     * templates of a bundle are removed if the bundle is updated or uninstalled.
+     *
+     * @param owner The class to load the resource from
+     * @param resource The resource name relative to the owner
+     * @return The compiled template
+     * @throws MException
+     */
+    public static Template getTemplate(Class<?> owner, String resource) throws MException {
+        URL url = owner.getResource(resource);
+        if (url == null)
+            throw new NotFoundException("Template resource doesn't exist", owner, resource);
+        String key = url.toExternalForm();
+        Bundle bundle = FrameworkUtil.getBundle(owner);
+        if (bundle != null) key = key + "@" + bundle.getBundleId() + ":" + bundle.getLastModified();
+
+        Template template = cache.get(key);
+        if (template != null) return template;
+
+        try (InputStream is = url.openStream()) {
+            template = Template.parse(is);
+        } catch (IOException e) {
+            throw new MException("Can't load template", url, e);
+        }
+        if (bundle != null) registerListener();
+        // templates are few, clear the cache if something unexpected fills it
+        if (cache.size() >= MAX_CACHE_SIZE) cache.clear();
+        cache.put(key, template);
+        return template;
+    }
+
+    private static synchronized void registerListener() {
+        if (listener != null) return;
+        Bundle own = FrameworkUtil.getBundle(TemplateUtils.class);
+        BundleContext context = own == null ? null : own.getBundleContext();
+        if (context == null) return;
+        listener =
+                event -> {
+                    int type = event.getType();
+                    if (type == BundleEvent.UPDATED
+                            || type == BundleEvent.UNRESOLVED
+                            || type == BundleEvent.UNINSTALLED)
+                        clearCache(event.getBundle().getBundleId());
+                };
+        context.addBundleListener(listener);
+    }
+
+    /**
+     * Remove the cached templates of the bundle.
+     *
+     * @param bundleId The bundle id
+     */
+    public static void clearCache(long bundleId) {
+        String marker = "@" + bundleId + ":";
+        cache.keySet().removeIf(k -> k.startsWith(marker, Math.max(0, k.lastIndexOf('@'))));
+    }
+
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    public static int getCacheSize() {
+        return cache.size();
     }
 
     private static void safeClose(Closeable cl) {
@@ -103,4 +190,48 @@ public class TemplateUtils {
             // nothing to do
         }
     }
+
+    /** A compiled template. Lines without placeholders are stored as plain strings. */
+    public static class Template {
+
+        private Object[] lines;
+
+        private Template(Object[] lines) {
+            this.lines = lines;
+        }
+
+        public static Template parse(InputStream templateIs) throws MException {
+            ArrayList<Object> lines = new ArrayList<>();
+            // read it line at a time so that we can use the platform line ending when we write it
+            // out
+            Scanner scanner = new Scanner(templateIs);
+            try {
+                while (scanner.hasNextLine()) {
+                    String line = scanner.nextLine();
+                    if (line.contains("$")) lines.add(StringCompiler.compile(line));
+                    else lines.add(line);
+                }
+            } finally {
+                scanner.close();
+            }
+            return new Template(lines.toArray());
+        }
+
+        public String render(Map<String, Object> properties) throws MException {
+            StringBuilder out = buffer.get();
+            out.setLength(0);
+            try {
+                for (Object line : lines) {
+                    if (line instanceof CompiledString)
+                        out.append(((CompiledString) line).execute(properties));
+                    else out.append((String) line);
+                    out.append(System.lineSeparator());
+                }
+                return out.toString();
+            } finally {
+                out.setLength(0);
+                if (out.capacity() > MAX_BUFFER_SIZE) buffer.remove();
+            }
+        }
+    }
 }
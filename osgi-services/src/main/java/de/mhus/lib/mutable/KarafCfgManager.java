@@ -16,6 +16,9 @@
 package de.mhus.lib.mutable;
 
 import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.service.cm.ConfigurationAdmin;
 
@@ -29,6 +32,11 @@ import de.mhus.osgi.api.MOsgi;
 
 public class KarafCfgManager extends MCfgManager {
 
+    /** Set the system property to true to load all configurations in parallel at startup */
+    public static final String PROP_PRELOAD = "de.mhus.lib.mutable.KarafCfgManager.preload";
+
+    private Map<String, KarfConfigProvider> providers = new ConcurrentHashMap<>();
+
     public KarafCfgManager(IApiInternal internal) {
         super(internal);
     }
@@ -43,12 +51,15 @@ public class KarafCfgManager extends MCfgManager {
         if (admin == null) {
             MApi.dirtyLogError("ConfigurationAdmin is null");
         } else {
+            // register lazy providers, the configuration is loaded on first access
             for (File file : new File("etc").listFiles()) {
                 if (file.isFile() && file.getName().endsWith(".cfg")) {
                     String pid = MString.beforeLastIndex(file.getName(), '.');
                     update(pid);
                 }
             }
+            if (Boolean.parseBoolean(System.getProperty(PROP_PRELOAD)))
+                providers.values().parallelStream().forEach(p -> p.getConfig());
         }
 
         // prepare system config for default
@@ -64,7 +75,9 @@ public class KarafCfgManager extends MCfgManager {
     public void update(String pid) {
         if (!pid.equals(M.CFG_SYSTEM)) {
             MApi.dirtyLogInfo("KarafCfgManager::Register PID", pid);
-            registerCfgProvider(new KarfConfigProvider(pid));
+            KarfConfigProvider provider = new KarfConfigProvider(pid);
+            providers.put(pid, provider);
+            registerCfgProvider(provider);
         }
     }
 
@@ -81,4 +94,13 @@ public class KarafCfgManager extends MCfgManager {
             update(MOsgi.findServicePid(clazz));
         }
     }
+
+    /**
+     * Return the registered ConfigurationAdmin providers by PID.
+     *
+     * @return Sorted map of providers
+     */
+    public Map<String, KarfConfigProvider> getKarafProviders() {
+        return new TreeMap<>(providers);
+    }
 }
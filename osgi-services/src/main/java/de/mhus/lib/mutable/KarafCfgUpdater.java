@@ -15,24 +15,67 @@
  */
 package de.mhus.lib.mutable;
 
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 
 import de.mhus.lib.core.MApi;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.osgi.api.MOsgi;
 
+/**
+ * Updates the mhus configuration if a service is modified. Events for the same PID are collected
+ * for the debounce time and only processed if the configuration really changed. The snapshot of a
+ * PID is created with its first event, the first event is always processed as changed.
+ */
 @Component(property = "event.topics=org/osgi/framework/ServiceEvent/MODIFIED")
-public class KarafCfgUpdater implements EventHandler {
+public class KarafCfgUpdater extends MLog implements EventHandler {
+
+    private static CfgLong CFG_DEBOUNCE = new CfgLong(KarafCfgUpdater.class, "debounce", 500);
 
     private BundleContext ctx;
+    private ScheduledExecutorService executor;
+    private Map<String, ScheduledFuture<?>> pending = new HashMap<>();
+    private Map<String, Map<String, Object>> snapshots = new HashMap<>();
+    private long events;
+    private long updates;
+    private long unchanged;
 
     @Activate
     public void doActivate(BundleContext ctx) {
         this.ctx = ctx;
+        executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "KarafCfgUpdater");
+                            t.setDaemon(true);
+                            return t;
+                        });
+    }
+
+    @Deactivate
+    public synchronized void doDeactivate() {
+        if (executor != null) executor.shutdownNow();
+        executor = null;
+        pending.clear();
     }
 
     @Override
@@ -42,11 +85,109 @@ public class KarafCfgUpdater implements EventHandler {
             ServiceReference<Object> serviceRef =
                     (ServiceReference<Object>) event.getProperty("service");
             Object service = ctx.getService(serviceRef);
-            String pid = MOsgi.getPid(service.getClass());
+            if (service == null) return;
+            String pid;
+            try {
+                pid = MOsgi.getPid(service.getClass());
+            } finally {
+                ctx.ungetService(serviceRef);
+            }
+            schedule(pid);
+        } catch (Throwable t) {
+            t.printStackTrace(); // should not happen
+        }
+    }
+
+    private synchronized void schedule(String pid) {
+        events++;
+        if (executor == null) {
+            log().d("updater not active, ignore", pid);
+            return;
+        }
+        ScheduledFuture<?> future = pending.get(pid);
+        if (future != null) future.cancel(false);
+        pending.put(
+                pid,
+                executor.schedule(
+                        () -> process(pid), CFG_DEBOUNCE.value(), TimeUnit.MILLISECONDS));
+    }
+
+    private void process(String pid) {
+        synchronized (this) {
+            pending.remove(pid);
+        }
+        try {
+            Map<String, Object> current = loadProperties(pid);
+            Map<String, Object> last;
+            synchronized (this) {
+                last = snapshots.put(pid, current);
+            }
+            TreeSet<String> changed = diff(last, current);
+            if (last != null && changed.isEmpty()) {
+                synchronized (this) {
+                    unchanged++;
+                }
+                log().t("configuration not changed", pid);
+                return;
+            }
+            synchronized (this) {
+                updates++;
+            }
+            log().d("configuration changed", pid, changed);
             ((KarafCfgManager) MApi.get().getCfgManager()).update(pid);
             MApi.getCfgUpdater().doUpdate(pid);
         } catch (Throwable t) {
-            t.printStackTrace(); // should not happen
+            log().w("update configuration failed", pid, t);
+        }
+    }
+
+    private Map<String, Object> loadProperties(String pid) throws Exception {
+        ConfigurationAdmin admin = MOsgi.getServiceOrNull(ConfigurationAdmin.class);
+        if (admin == null) return new HashMap<>();
+        Configuration configuration = admin.getConfiguration(pid);
+        return toMap(configuration == null ? null : configuration.getProperties());
+    }
+
+    private static Map<String, Object> toMap(Dictionary<String, Object> properties) {
+        HashMap<String, Object> out = new HashMap<>();
+        if (properties == null) return out;
+        Enumeration<String> enu = properties.keys();
+        while (enu.hasMoreElements()) {
+            String key = enu.nextElement();
+            out.put(key, properties.get(key));
         }
+        return out;
+    }
+
+    /**
+     * Return the keys with different values.
+     *
+     * @param last
+     * @param current
+     * @return Changed keys
+     */
+    public static TreeSet<String> diff(Map<String, Object> last, Map<String, Object> current) {
+        TreeSet<String> out = new TreeSet<>();
+        if (last == null) {
+            out.addAll(current.keySet());
+            return out;
+        }
+        for (Map.Entry<String, Object> entry : current.entrySet())
+            if (!Objects.deepEquals(entry.getValue(), last.get(entry.getKey())))
+                out.add(entry.getKey());
+        for (String key : last.keySet()) if (!current.containsKey(key)) out.add(key);
+        return out;
+    }
+
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    public synchronized long getUnchanged() {
+        return unchanged;
     }
 }
@@ -15,28 +15,91 @@
  */
 package de.mhus.lib.mutable;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
 
-import de.mhus.lib.core.ITimerTask;
 import de.mhus.lib.core.MHousekeeper;
 import de.mhus.lib.core.MHousekeeperTask;
+import de.mhus.lib.core.MPeriod;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.mapi.DefaultHousekeeper;
-import de.mhus.lib.core.schedule.IntervalJob;
 import de.mhus.lib.core.util.MObject;
-import de.mhus.osgi.services.scheduler.TimerFactoryImpl;
 
+/**
+ * Executes housekeeper tasks in a dedicated low priority thread. Start times are randomized,
+ * tasks due within the same window are executed in one batch and the intervals are stretched if
+ * the system load is high. The thread stops if the housekeeper is closed, replaced by a new one or
+ * the bundle is stopped.
+ *
+ * <p>Each task runs in a worker thread with a time budget. If a task exceeds the budget the
+ * housekeeper continues with the next task and skips the overrunning one until it returns.
+ */
 public class KarafHousekeeper extends MObject implements MHousekeeper {
 
+    private static CfgLong CFG_BATCH_WINDOW =
+            new CfgLong(KarafHousekeeper.class, "batchWindow", 2000);
+    private static CfgLong CFG_MAX_JITTER =
+            new CfgLong(KarafHousekeeper.class, "maxJitter", MPeriod.MINUTE_IN_MILLISECONDS);
+    private static CfgLong CFG_MAX_LOAD_FACTOR =
+            new CfgLong(KarafHousekeeper.class, "maxLoadFactor", 4);
+    private static CfgLong CFG_MAX_RUNTIME =
+            new CfgLong(
+                    KarafHousekeeper.class, "maxRuntime", MPeriod.MINUTE_IN_MILLISECONDS * 5);
+
+    /** Check the bundle state at least in this interval */
+    private static final long MAX_WAIT = MPeriod.MINUTE_IN_MILLISECONDS;
+
+    private static KarafHousekeeper current;
+
+    private LinkedList<TaskEntry> tasks = new LinkedList<>();
+    private Thread thread;
+    private ExecutorService executor;
+    private boolean closed;
+
     public KarafHousekeeper() {
+        replace(this);
         for (Entry<MHousekeeperTask, Long> task : DefaultHousekeeper.getAll().entrySet()) {
             String name = task.getKey().getName();
             log().d("import", name, task.getKey(), task.getValue());
+            add(task.getKey(), task.getValue());
+        }
+    }
+
+    private static synchronized void replace(KarafHousekeeper housekeeper) {
+        if (current != null) current.close();
+        current = housekeeper;
+    }
 
-            WeakObserver t = new WeakObserver(task.getKey(), "housekeeper:" + name);
-            IntervalJob job = new IntervalJob(task.getValue(), t);
-            t.setJob(job);
-            TimerFactoryImpl.schedule(job);
+    public static synchronized KarafHousekeeper getCurrent() {
+        return current;
+    }
+
+    /** Stop the thread and forget all tasks. */
+    public void close() {
+        synchronized (tasks) {
+            closed = true;
+            tasks.clear();
+            if (thread != null) thread.interrupt();
+            thread = null;
+            if (executor != null) executor.shutdownNow();
+            executor = null;
+            tasks.notifyAll();
         }
     }
 
@@ -45,68 +108,248 @@ public class KarafHousekeeper extends MObject implements MHousekeeper {
         String name = task.getName();
         log().d("register", name, task, sleep);
         DefaultHousekeeper.put(task, sleep);
+        add(task, sleep);
+    }
+
+    private void add(MHousekeeperTask task, long sleep) {
+        TaskEntry entry = new TaskEntry(task, "housekeeper:" + task.getName(), sleep);
+        entry.next = System.currentTimeMillis() + sleep + jitter(sleep);
+        synchronized (tasks) {
+            if (closed) {
+                log().d("housekeeper is closed, ignore", task.getName());
+                return;
+            }
+            tasks.add(entry);
+            if (thread == null) {
+                thread = new Thread(this::doRun, "de.mhus.lib.karaf.Housekeeper");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+            }
+            if (executor == null)
+                executor =
+                        Executors.newCachedThreadPool(
+                                r -> {
+                                    Thread t = new Thread(r, "de.mhus.lib.karaf.HousekeeperTask");
+                                    t.setDaemon(true);
+                                    t.setPriority(Thread.MIN_PRIORITY);
+                                    return t;
+                                });
+            tasks.notifyAll();
+        }
+    }
+
+    private long jitter(long interval) {
+        long max = Math.min(CFG_MAX_JITTER.value(), interval / 2);
+        if (max <= 0) return 0;
+        return ThreadLocalRandom.current().nextLong(max);
+    }
+
+    private void doRun() {
+        while (isActive()) {
+            List<TaskEntry> batch = new ArrayList<>();
+            synchronized (tasks) {
+                long now = System.currentTimeMillis();
+                long next = Long.MAX_VALUE;
+                for (TaskEntry entry : tasks) next = Math.min(next, entry.next);
+                if (next > now) {
+                    try {
+                        tasks.wait(Math.min(MAX_WAIT, next - now));
+                    } catch (InterruptedException e) {
+                        log().d("housekeeper interrupted");
+                        return;
+                    }
+                    continue;
+                }
+                // coalesce all tasks which are due in the current window
+                long limit = now + CFG_BATCH_WINDOW.value();
+                for (TaskEntry entry : tasks) if (entry.next <= limit) batch.add(entry);
+            }
+
+            for (TaskEntry entry : batch) {
+                if (!isActive()) break;
+                if (!execute(entry)) return;
+            }
+
+            double loadFactor = calculateLoadFactor();
+            long now = System.currentTimeMillis();
+            synchronized (tasks) {
+                for (TaskEntry entry : batch) {
+                    if (entry.isRemoved()) tasks.remove(entry);
+                    else
+                        entry.next =
+                                now
+                                        + (long) (entry.interval * loadFactor)
+                                        + jitter(entry.interval / 10);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the task in a worker and wait until it returns or the time budget is exceeded.
+     *
+     * @param entry The task
+     * @return false if the housekeeper thread was interrupted
+     */
+    private boolean execute(TaskEntry entry) {
+        if (entry.isBusy()) {
+            entry.skipped++;
+            log().d("task is still running, skip", entry.name);
+            return true;
+        }
+        Future<?> future;
+        try {
+            synchronized (tasks) {
+                if (executor == null) return true;
+                future = executor.submit(entry::run);
+            }
+        } catch (RejectedExecutionException e) {
+            return true; // closed
+        }
+        entry.future = future;
+        long budget = CFG_MAX_RUNTIME.value();
+        try {
+            if (budget > 0) future.get(budget, TimeUnit.MILLISECONDS);
+            else future.get();
+        } catch (TimeoutException e) {
+            entry.overruns++;
+            log().w("task exceeds the time budget, skip it until it returns", entry.name, budget);
+        } catch (InterruptedException e) {
+            log().d("housekeeper interrupted");
+            return false;
+        } catch (ExecutionException e) {
+            log().d(entry.name, e);
+        }
+        return true;
+    }
+
+    private boolean isActive() {
+        synchronized (tasks) {
+            if (closed || thread != Thread.currentThread()) return false;
+        }
+        Bundle bundle = FrameworkUtil.getBundle(KarafHousekeeper.class);
+        if (bundle == null || (bundle.getState() & (Bundle.ACTIVE | Bundle.STARTING)) != 0)
+            return true;
+        log().d("bundle stopped, close housekeeper");
+        close();
+        return false;
+    }
+
+    private double calculateLoadFactor() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            double load = os.getSystemLoadAverage();
+            if (load < 0) return 1; // not available
+            double perCpu = load / Math.max(1, os.getAvailableProcessors());
+            return Math.max(1, Math.min(CFG_MAX_LOAD_FACTOR.value(), perCpu));
+        } catch (Throwable t) {
+            return 1;
+        }
+    }
 
-        WeakObserver t = new WeakObserver(task, "housekeeper:" + name);
-        IntervalJob job = new IntervalJob(sleep, t);
-        t.setJob(job);
-        TimerFactoryImpl.schedule(job);
+    /**
+     * Return the registered tasks.
+     *
+     * @return Copy of the task list
+     */
+    public List<TaskEntry> getTasks() {
+        synchronized (tasks) {
+            return new ArrayList<>(tasks);
+        }
     }
 
-    private static class WeakObserver implements ITimerTask {
+    public class TaskEntry {
 
         private WeakReference<MHousekeeperTask> task;
-        private IntervalJob job;
         private String name;
+        private long interval;
+        private volatile long next;
+        private volatile Future<?> future;
+        private volatile long lastStart;
+        private volatile long lastStop;
+        private volatile long runs;
+        private volatile long overruns;
+        private volatile long skipped;
 
-        public WeakObserver(MHousekeeperTask task, String name) {
+        public TaskEntry(MHousekeeperTask task, String name, long interval) {
             this.task = new WeakReference<MHousekeeperTask>(task);
             this.name = name;
+            this.interval = Math.max(1000, interval);
         }
 
-        public void setJob(IntervalJob job) {
-            this.job = job;
+        public boolean isRemoved() {
+            MHousekeeperTask t = task.get();
+            return t == null || t.isCanceled();
         }
 
-        @Override
-        public void run(Object arg) {
+        private void run() {
             MHousekeeperTask t = task.get();
-            if (t == null) job.cancel();
-            else t.run(arg);
+            if (t == null || t.isCanceled()) return;
+            lastStart = System.currentTimeMillis();
+            runs++;
+            boolean isError = false;
+            try {
+                t.run(null);
+            } catch (Throwable e) {
+                isError = true;
+                try {
+                    t.onError(e);
+                } catch (Throwable e2) {
+                    log().d(name, e2);
+                }
+            } finally {
+                try {
+                    t.onFinal(isError);
+                } catch (Throwable e) {
+                    log().d(name, e);
+                }
+                lastStop = System.currentTimeMillis();
+            }
         }
 
-        @Override
-        public String toString() {
-            MHousekeeperTask t = task.get();
-            if (t == null) return name + "[removed]";
-            return t.toString();
+        public boolean isBusy() {
+            Future<?> f = future;
+            return f != null && !f.isDone();
         }
 
-        @Override
         public String getName() {
-            MHousekeeperTask t = task.get();
-            if (t == null) return name + "[removed]";
             return name;
         }
 
-        @Override
-        public void onError(Throwable e) {
-            MHousekeeperTask t = task.get();
-            if (t == null) job.cancel();
-            else t.onError(e);
+        public long getInterval() {
+            return interval;
         }
 
-        @Override
-        public void onFinal(boolean isError) {
-            MHousekeeperTask t = task.get();
-            if (t == null) job.cancel();
-            else t.onFinal(isError);
+        public long getNext() {
+            return next;
+        }
+
+        public long getLastStart() {
+            return lastStart;
+        }
+
+        public long getLastStop() {
+            return lastStop;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        public long getOverruns() {
+            return overruns;
+        }
+
+        public long getSkipped() {
+            return skipped;
         }
 
         @Override
-        public boolean isCanceled() {
+        public String toString() {
             MHousekeeperTask t = task.get();
-            if (t == null) return true;
-            return t.isCanceled();
+            if (t == null) return name + "[removed]";
+            return t.toString();
         }
     }
 }
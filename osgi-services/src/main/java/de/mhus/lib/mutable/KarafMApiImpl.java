@@ -18,6 +18,7 @@ package de.mhus.lib.mutable;
 import java.io.File;
 import java.io.Serializable;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -48,7 +49,9 @@ import de.mhus.osgi.api.MOsgi;
 /** @author mikehummel */
 public class KarafMApiImpl extends DefaultMApi implements IApi, ApiInitialize, IApiInternal {
 
-    private boolean fullTrace = false;
+    private volatile boolean fullTrace = false;
+    /** Precomputed trace flags, replaced if the trace configuration changes */
+    private volatile ConcurrentHashMap<String, Boolean> traceCache = new ConcurrentHashMap<>();
     private KarafHousekeeper housekeeper;
     private ICache<String, Container> apiCache;
     private boolean CFG_USE_LOOKUP_CACHE = true;
@@ -71,6 +74,7 @@ public class KarafMApiImpl extends DefaultMApi implements IApi, ApiInitialize, I
         //		TimerFactoryImpl.indoCheckTimers();
 
         try {
+            if (housekeeper != null) housekeeper.close();
             housekeeper = new KarafHousekeeper();
             base.addObject(MHousekeeper.class, null, housekeeper);
         } catch (Throwable t) {
@@ -80,19 +84,38 @@ public class KarafMApiImpl extends DefaultMApi implements IApi, ApiInitialize, I
 
     @Override
     public boolean isTrace(String name) {
-        return fullTrace || super.isTrace(name);
+        if (fullTrace) return true;
+        ConcurrentHashMap<String, Boolean> cache = traceCache;
+        if (name == null) return super.isTrace(name);
+        Boolean trace = cache.get(name);
+        if (trace == null) {
+            trace = super.isTrace(name);
+            cache.put(name, trace);
+        }
+        return trace;
     }
 
     public void setFullTrace(boolean trace) {
         fullTrace = trace;
     }
 
-    public void setTrace(String name) {
-        logTrace.add(name);
+    public synchronized void setTrace(String... names) {
+        for (String name : names) logTrace.add(name);
+        resetTraceCache();
     }
 
-    public void clearTrace() {
+    public synchronized void clearTrace() {
         logTrace.clear();
+        resetTraceCache();
+    }
+
+    /**
+     * Drop the precomputed trace flags. Call MApi.updateLoggers() to push the changes to the
+     * loggers.
+     */
+    public void resetTraceCache() {
+        // a new map, clear() would keep flags put by isTrace() calls still using the old config
+        traceCache = new ConcurrentHashMap<>();
     }
 
     public String[] getTraceNames() {
@@ -308,6 +331,7 @@ public class KarafMApiImpl extends DefaultMApi implements IApi, ApiInitialize, I
     @Override
     public void updateSystemCfg(CfgProvider system) {
         super.updateSystemCfg(system);
+        resetTraceCache();
         if (system == null) return;
         CFG_USE_LOOKUP_CACHE =
                 system.getConfig().getBoolean("lookupCacheEnabled", CFG_USE_LOOKUP_CACHE);
@@ -16,49 +16,100 @@
 package de.mhus.lib.mutable;
 
 import java.io.IOException;
+import java.util.Dictionary;
 import java.util.Enumeration;
 
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 
 import de.mhus.lib.core.cfg.NodeCfgProvider;
+import de.mhus.lib.core.node.INode;
 import de.mhus.lib.core.node.MNode;
 import de.mhus.osgi.api.MOsgi;
 
+/**
+ * Provides the configuration of a PID from ConfigurationAdmin. The configuration is loaded on
+ * first access.
+ */
 public class KarfConfigProvider extends NodeCfgProvider {
 
+    private volatile boolean loaded;
+    private volatile long loadTime = -1;
+    private volatile int loadCount;
+
     public KarfConfigProvider(String pid) {
         super(pid);
     }
 
-    public void load() throws IOException {
+    public synchronized void load() throws IOException {
+        long start = System.currentTimeMillis();
         ConfigurationAdmin admin = MOsgi.getServiceOrNull(ConfigurationAdmin.class);
         Configuration configuration = admin.getConfiguration(getName());
-        config = new MNode();
-        if (configuration != null && configuration.getProperties() != null) {
-            Enumeration<String> enu = configuration.getProperties().keys();
+        MNode node = new MNode();
+        // getProperties() returns a copy, fetch it only once
+        Dictionary<String, Object> properties =
+                configuration == null ? null : configuration.getProperties();
+        if (properties != null) {
+            Enumeration<String> enu = properties.keys();
             while (enu.hasMoreElements()) {
                 String key = enu.nextElement();
-                config.put(key, configuration.getProperties().get(key));
+                node.put(key, properties.get(key));
             }
         }
+        config = node;
+        loaded = true;
+        loadCount++;
+        loadTime = System.currentTimeMillis() - start;
     }
 
     @Override
-    public void doRestart() {
-        doStop();
-        doStart();
+    public INode getConfig() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) doLoad();
+            }
+        }
+        return super.getConfig();
     }
 
-    @Override
-    public void doStart() {
+    private void doLoad() {
         try {
             load();
         } catch (IOException e) {
             e.printStackTrace();
+            loaded = true; // do not retry on every access
         }
     }
 
+    @Override
+    public void doRestart() {
+        doStop();
+        doStart();
+    }
+
+    @Override
+    public void doStart() {
+        // load lazy on next access
+        loaded = false;
+    }
+
     @Override
     public void doStop() {}
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Duration of the last load in milliseconds or -1 if not loaded.
+     *
+     * @return Load time
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    public int getLoadCount() {
+        return loadCount;
+    }
 }
@@ -15,17 +15,22 @@
  */
 package de.mhus.osgi.services;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.service.blueprint.container.BlueprintContainer;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
@@ -42,7 +47,6 @@ import de.mhus.lib.core.MFile;
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MString;
 import de.mhus.lib.core.MSystem;
-import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.MXml;
 import de.mhus.lib.core.mapi.MCfgManager;
 import de.mhus.lib.core.node.INode;
@@ -58,6 +62,16 @@ import de.mhus.osgi.api.util.TemplateUtils;
 public class BlueprintManager extends MLog implements IBlueprintManager {
 
     private static final String BLUEPRINT_PREFIX = "service-";
+    private static final int MAX_THREADS = 8;
+
+    /** Generated content by implementation class, used to skip unchanged blueprints */
+    private Map<String, Generated> generated = new ConcurrentHashMap<>();
+
+    private long lastWaitTime;
+    private long lastReloadTime;
+    private int lastCount;
+    private int lastWritten;
+    private int lastFailed;
 
     @Activate
     public void doActivate(ComponentContext ctx) {
@@ -67,32 +81,105 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
     @Override
     public void reloadConfigured() {
         log().i("reloadConfigured");
+        long start = System.currentTimeMillis();
         List<INode> list = MCfgManager.getGlobalConfigurations("service");
-        for (INode entry : list) {
-            try {
-                log().i("create/update", entry);
-                create(entry.getString("class", null), entry.getString("bundle", null), true);
-            } catch (Throwable t) {
-                log().e("create blueprint failed", entry, t);
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.max(
+                                1,
+                                Math.min(
+                                        MAX_THREADS,
+                                        Math.min(
+                                                list.size(),
+                                                Runtime.getRuntime().availableProcessors()))));
+        try {
+            LinkedList<Future<?>> futures = new LinkedList<>();
+            for (INode entry : list) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    try {
+                                        log().d("create/update", entry);
+                                        if (create(
+                                                entry.getString("class", null),
+                                                entry.getString("bundle", null),
+                                                true)) {
+                                            log().i("updated", entry);
+                                            written.incrementAndGet();
+                                        }
+                                    } catch (Throwable t) {
+                                        log().e("create blueprint failed", entry, t);
+                                        failed.incrementAndGet();
+                                    }
+                                }));
             }
+            for (Future<?> future : futures)
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    log().d(e);
+                }
+        } finally {
+            executor.shutdown();
         }
+
+        lastReloadTime = System.currentTimeMillis() - start;
+        lastCount = list.size();
+        lastWritten = written.get();
+        lastFailed = failed.get();
+        log().i(
+                        "reloadConfigured finished",
+                        "services",
+                        lastCount,
+                        "written",
+                        lastWritten,
+                        "failed",
+                        lastFailed,
+                        "time",
+                        lastReloadTime);
     }
 
     private void doInit(ComponentContext c) {
-        x:
-        while (true) {
-            for (Bundle b : c.getBundleContext().getBundles()) {
-                int state = b.getState();
-                if (state == Bundle.STARTING) {
-                    MThread.sleep(200);
-                    continue x;
+        // wait until no bundle is starting, triggered by bundle events
+        long start = System.currentTimeMillis();
+        BundleContext context = c.getBundleContext();
+        Object lock = new Object();
+        BundleListener listener =
+                e -> {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                };
+        context.addBundleListener(listener);
+        try {
+            synchronized (lock) {
+                while (hasStartingBundles(context)) {
+                    try {
+                        lock.wait(5000);
+                    } catch (InterruptedException e) {
+                        log().d("interrupted", e);
+                        return;
+                    }
                 }
             }
-            break;
+        } finally {
+            context.removeBundleListener(listener);
         }
+        lastWaitTime = System.currentTimeMillis() - start;
+        log().d("bundles started", lastWaitTime);
         reloadConfigured();
     }
 
+    private boolean hasStartingBundles(BundleContext context) {
+        for (Bundle b : context.getBundles()) {
+            if (b.getState() == Bundle.STARTING) return true;
+        }
+        return false;
+    }
+
     @Override
     public boolean create(String implClass, String bundleName) throws Exception {
         return create(implClass, bundleName, false);
@@ -107,16 +194,29 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
         if (MString.isEmpty(implClass)) return false;
         File outFile = getBlueprintFle(implClass);
 
-        String newContent = toString(implClass, bundleName);
+        Class<?> clazz = loadClass(implClass, bundleName);
+        String key = getGeneratedKey(clazz, bundleName);
+        Generated last = generated.get(implClass);
 
         if (outFile.exists()) {
             if (!update) return false;
+            // nothing changed since the last write
+            if (last != null && last.isUnchanged(key, outFile)) return false;
+        }
+
+        String newContent =
+                last != null && last.key.equals(key) ? last.content : toString(clazz);
 
+        if (outFile.exists()) {
             String currentContent = MFile.readFile(outFile);
-            if (newContent.equals(currentContent)) return false;
+            if (newContent.equals(currentContent)) {
+                generated.put(implClass, new Generated(key, newContent, outFile));
+                return false;
+            }
         }
 
         MFile.writeFile(outFile, newContent);
+        generated.put(implClass, new Generated(key, newContent, outFile));
         return true;
     }
 
@@ -126,17 +226,32 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
     }
 
     public String toString(String implClass, String bundleName) throws Exception {
+        return toString(loadClass(implClass, bundleName));
+    }
 
-        // lookup class
-        Class<?> clazz = null;
+    private Class<?> loadClass(String implClass, String bundleName) throws Exception {
         if (MString.isSet(bundleName)) {
             Bundle bundle = MOsgi.getBundle(bundleName);
-            clazz = bundle.loadClass(implClass);
+            return bundle.loadClass(implClass);
         } else {
             OsgiBundleClassLoader cl = new OsgiBundleClassLoader();
-            clazz = cl.loadClass(implClass);
+            return cl.loadClass(implClass);
         }
+    }
 
+    private String getGeneratedKey(Class<?> clazz, String bundleName) {
+        Bundle bundle = FrameworkUtil.getBundle(clazz);
+        if (bundle == null) return clazz.getName() + "@" + bundleName;
+        return clazz.getName()
+                + "@"
+                + bundle.getBundleId()
+                + ":"
+                + bundle.getVersion()
+                + ":"
+                + bundle.getLastModified();
+    }
+
+    public String toString(Class<?> clazz) throws Exception {
         ServiceComponent def = clazz.getAnnotation(ServiceComponent.class);
         if (def == null)
             throw new IllegalArgumentException(
@@ -362,18 +477,7 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
         properties.put("bean", bean.toString());
         properties.put("service", service.toString());
 
-        String templateFile = "blueprint.xml";
-        InputStream is = this.getClass().getResourceAsStream(templateFile);
-        if (is == null) {
-            throw new IllegalArgumentException(
-                    "Template resource " + templateFile + " doesn't exist");
-        }
-
-        ByteArrayOutputStream sos = new ByteArrayOutputStream();
-        PrintStream out = new PrintStream(sos);
-        TemplateUtils.createFromTemplate(out, is, properties, true);
-
-        return sos.toString();
+        return TemplateUtils.render(BlueprintManager.class, "blueprint.xml", properties);
     }
 
     private File getBlueprintFle(String implClass) {
@@ -389,6 +493,26 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
         return true;
     }
 
+    public long getLastWaitTime() {
+        return lastWaitTime;
+    }
+
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    public int getLastCount() {
+        return lastCount;
+    }
+
+    public int getLastWritten() {
+        return lastWritten;
+    }
+
+    public int getLastFailed() {
+        return lastFailed;
+    }
+
     @Override
     public List<String> list() {
         LinkedList<String> out = new LinkedList<>();
@@ -400,4 +524,25 @@ public class BlueprintManager extends MLog implements IBlueprintManager {
             }
         return out;
     }
+
+    private static class Generated {
+
+        private String key;
+        private String content;
+        private long modified;
+        private long length;
+
+        Generated(String key, String content, File file) {
+            this.key = key;
+            this.content = content;
+            this.modified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean isUnchanged(String key, File file) {
+            return this.key.equals(key)
+                    && file.lastModified() == modified
+                    && file.length() == length;
+        }
+    }
 }
@@ -15,74 +15,146 @@
  */
 package de.mhus.osgi.services;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.FrameworkUtil;
-import org.osgi.util.tracker.BundleTracker;
-import org.osgi.util.tracker.BundleTrackerCustomizer;
+import org.osgi.framework.SynchronousBundleListener;
 
 /**
- * Stores a local value for a bundle. If the bundle is stopped, the value will be removed.
+ * Stores a local value for a bundle. The value is bound to the bundle id and the installed
+ * revision of the bundle. If the bundle is stopped, updated or uninstalled, the value will be
+ * removed. The class is thread safe.
  *
  * @author mikehummel
  * @param <T>
  */
 public class BundleLocal<T> {
 
-    private BundleTracker<Bundle> tracker =
-            new BundleTracker<>(
-                    FrameworkUtil.getBundle(BundleLocal.class).getBundleContext(),
-                    Bundle.STARTING | Bundle.STOPPING,
-                    new MyCustomizer());
-    private HashMap<String, T> map = new HashMap<>();
+    private BundleContext context = FrameworkUtil.getBundle(BundleLocal.class).getBundleContext();
+    private SynchronousBundleListener listener;
+    private Map<Key, T> map = new ConcurrentHashMap<>();
 
-    public BundleLocal<T> open() {
-        tracker.open();
+    public synchronized BundleLocal<T> open() {
+        if (listener != null) return this;
+        listener =
+                new SynchronousBundleListener() {
+                    @Override
+                    public void bundleChanged(BundleEvent event) {
+                        switch (event.getType()) {
+                            case BundleEvent.STOPPING:
+                            case BundleEvent.STOPPED:
+                            case BundleEvent.UPDATED:
+                            case BundleEvent.UNRESOLVED:
+                            case BundleEvent.UNINSTALLED:
+                                remove(event.getBundle());
+                                break;
+                            default:
+                        }
+                    }
+                };
+        context.addBundleListener(listener);
         return this;
     }
 
-    public void close() {
-        if (tracker == null) return;
-        tracker.close();
-        tracker = null;
+    public synchronized void close() {
+        if (listener == null) return;
+        try {
+            context.removeBundleListener(listener);
+        } catch (IllegalStateException e) {
+            // context is no longer valid
+        }
+        listener = null;
+        map.clear();
     }
 
-    @Override
-    protected void finalize() {
-        close();
+    public void put(Bundle bundle, T value) {
+        if (value == null) map.remove(new Key(bundle));
+        else map.put(new Key(bundle), value);
     }
 
-    public void put(Bundle bundle, T value) {
-        put(bundle.getSymbolicName(), value);
+    public T get(Bundle bundle) {
+        return map.get(new Key(bundle));
     }
 
-    public void put(String symbolicName, T value) {
-        map.put(symbolicName, value);
+    /**
+     * Return the value of the bundle or create it with the given function. The function is called
+     * at most once per bundle revision.
+     *
+     * @param bundle The bundle
+     * @param create Function to create the value
+     * @return The value
+     */
+    public T computeIfAbsent(Bundle bundle, Function<Bundle, T> create) {
+        return map.computeIfAbsent(new Key(bundle), k -> create.apply(bundle));
     }
 
-    public T get(Bundle bundle) {
-        return get(bundle.getSymbolicName());
+    /**
+     * Remove all values of the bundle.
+     *
+     * @param bundle The bundle
+     */
+    public void remove(Bundle bundle) {
+        long id = bundle.getBundleId();
+        map.keySet().removeIf(k -> k.id == id);
+    }
+
+    /**
+     * Store the value for the current revision of the bundle with the symbolic name.
+     *
+     * @param symbolicName
+     * @param value The value or null to remove it
+     * @throws IllegalArgumentException if a value is set and no bundle with the name is installed
+     */
+    @Deprecated
+    public void put(String symbolicName, T value) {
+        Bundle bundle = findBundle(symbolicName);
+        if (bundle != null) put(bundle, value);
+        else if (value != null)
+            throw new IllegalArgumentException("bundle not installed: " + symbolicName);
     }
 
+    @Deprecated
     public T get(String symbolicName) {
-        return map.get(symbolicName);
+        Bundle bundle = findBundle(symbolicName);
+        if (bundle == null) return null;
+        return get(bundle);
     }
 
-    private class MyCustomizer implements BundleTrackerCustomizer<Bundle> {
+    private Bundle findBundle(String symbolicName) {
+        for (Bundle bundle : context.getBundles())
+            if (symbolicName.equals(bundle.getSymbolicName())) return bundle;
+        return null;
+    }
 
-        @Override
-        public Bundle addingBundle(Bundle bundle, BundleEvent event) {
-            return bundle;
+    public int size() {
+        return map.size();
+    }
+
+    private static class Key {
+
+        private final long id;
+        private final long revision;
+
+        Key(Bundle bundle) {
+            this.id = bundle.getBundleId();
+            this.revision = bundle.getLastModified();
         }
 
         @Override
-        public void modifiedBundle(Bundle bundle, BundleEvent event, Bundle object) {}
+        public int hashCode() {
+            return Long.hashCode(id) * 31 + Long.hashCode(revision);
+        }
 
         @Override
-        public void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
-            map.remove(bundle.getSymbolicName());
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key o = (Key) obj;
+            return id == o.id && revision == o.revision;
         }
     }
 }
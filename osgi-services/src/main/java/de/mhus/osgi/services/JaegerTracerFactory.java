@@ -20,7 +20,12 @@ import de.mhus.lib.core.logging.TracerFactory;
 import io.jaegertracing.Configuration;
 import io.jaegertracing.Configuration.ReporterConfiguration;
 import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.metrics.Metrics;
+import io.jaegertracing.internal.metrics.NoopMetricsFactory;
+import io.jaegertracing.internal.reporters.CompositeReporter;
 import io.jaegertracing.internal.reporters.RemoteReporter;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sampler;
 import io.jaegertracing.spi.Sender;
 import io.jaegertracing.thrift.internal.senders.ThriftSenderFactory;
 import io.opentracing.Tracer;
@@ -29,10 +34,28 @@ public class JaegerTracerFactory implements TracerFactory {
 
     private Configuration config;
     private ReporterConfiguration reporterConfig;
+    private Sampler sampler;
+    private SpanCollector collector;
 
     public JaegerTracerFactory(Configuration config, ReporterConfiguration reporterConfig) {
+        this(config, reporterConfig, null, null);
+    }
+
+    /**
+     * @param config
+     * @param reporterConfig
+     * @param sampler Sampler or null to use the configuration
+     * @param collector In process collector or null
+     */
+    public JaegerTracerFactory(
+            Configuration config,
+            ReporterConfiguration reporterConfig,
+            Sampler sampler,
+            SpanCollector collector) {
         this.config = config;
         this.reporterConfig = reporterConfig;
+        this.sampler = sampler;
+        this.collector = collector;
     }
 
     @Override
@@ -46,18 +69,35 @@ public class JaegerTracerFactory implements TracerFactory {
                     new ThriftSenderFactory().getSender(reporterConfig.getSenderConfiguration());
             if (sender == null) System.out.println("Can't create ThriftSender");
             else {
-                RemoteReporter reporter = new RemoteReporter.Builder().withSender(sender).build();
-                tracer =
+                Reporter reporter = new RemoteReporter.Builder().withSender(sender).build();
+                if (collector != null) reporter = new CompositeReporter(reporter, collector);
+                JaegerTracer.Builder builder =
                         config.withReporter(reporterConfig)
                                 .getTracerBuilder()
-                                .withReporter(reporter)
-                                .build();
+                                .withReporter(reporter);
+                if (sampler != null) builder.withSampler(sampler);
+                tracer = builder.build();
             }
         }
+        if (tracer == null && (sampler != null || collector != null)) {
+            JaegerTracer.Builder builder = config.getTracerBuilder();
+            // without agent use the configured reporter (e.g. log spans) and the collector
+            if (collector != null)
+                builder.withReporter(
+                        new CompositeReporter(
+                                reporterConfig.getReporter(new Metrics(new NoopMetricsFactory())),
+                                collector));
+            if (sampler != null) builder.withSampler(sampler);
+            tracer = builder.build();
+        }
         if (tracer == null) {
             tracer = config.getTracer();
         }
 
         return tracer;
     }
+
+    public SpanCollector getCollector() {
+        return collector;
+    }
 }
@@ -16,8 +16,11 @@
 package de.mhus.osgi.services;
 
 import java.lang.reflect.Field;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ops4j.pax.logging.PaxLogger;
 import org.ops4j.pax.logging.spi.PaxLoggingEvent;
@@ -28,7 +31,10 @@ import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 
 import de.mhus.lib.core.MApi;
+import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MString;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
 import de.mhus.lib.core.cfg.CfgString;
 import de.mhus.lib.core.logging.DefaultTracer;
 import de.mhus.lib.core.logging.ITracer;
@@ -38,8 +44,14 @@ import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.karaf.LogServiceTracker;
 import de.mhus.osgi.api.karaf.LogServiceTracker.LOG_LEVEL;
 import io.jaegertracing.Configuration;
+import io.jaegertracing.internal.JaegerSpanContext;
 import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.internal.samplers.ProbabilisticSampler;
+import io.jaegertracing.internal.samplers.RateLimitingSampler;
+import io.jaegertracing.spi.Sampler;
 import io.opentracing.Span;
+import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.noop.NoopTracerFactory;
 import io.opentracing.util.GlobalTracer;
@@ -53,10 +65,40 @@ public class JaegerTracerService extends DefaultTracer {
     private CfgString CFG_LOG_LEVEL =
             new CfgString(JaegerTracerService.class, "logLevel", "DEBUG")
                     .updateAction(v -> updateLogLevel());
+    private CfgInt CFG_LOG_SAMPLE =
+            new CfgInt(JaegerTracerService.class, "logSample", 1)
+                    .updateAction(v -> updateLogLevel());
+    private CfgInt CFG_LOG_MAX_PER_SPAN =
+            new CfgInt(JaegerTracerService.class, "logMaxPerSpan", 100)
+                    .updateAction(v -> updateLogLevel());
+    private CfgInt CFG_LOG_STACK_LINES =
+            new CfgInt(JaegerTracerService.class, "logStackLines", 30)
+                    .updateAction(v -> updateLogLevel());
+
+    /**
+     * Sampler: const:0|1, probabilistic:rate, ratelimiting:traces/s or empty for JAEGER_ env. If
+     * empty and only the collector is active (no agent and no sampler in the env) then
+     * ratelimiting:CFG_COLLECTOR_RATE is used.
+     */
+    private CfgString CFG_SAMPLER = new CfgString(JaegerTracerService.class, "sampler", "");
+    private CfgBoolean CFG_COLLECTOR = new CfgBoolean(JaegerTracerService.class, "collector", true);
+    private CfgInt CFG_COLLECTOR_SIZE =
+            new CfgInt(JaegerTracerService.class, "collectorSize", 10000);
+    private CfgInt CFG_COLLECTOR_RATE =
+            new CfgInt(JaegerTracerService.class, "collectorRate", 10);
 
     private LogServiceTracker tracker;
+    private SpanCollector collector;
 
     private int logLevel;
+    private int logSample;
+    private int logMaxPerSpan;
+    private int logStackLines;
+    private AtomicLong logSampleCounter = new AtomicLong();
+
+    // events per span, the span context is held weakly and released with the span
+    private Map<SpanContext, AtomicInteger> logCounter =
+            Collections.synchronizedMap(new WeakHashMap<>());
 
     private boolean initService;
 
@@ -108,6 +150,9 @@ public class JaegerTracerService extends DefaultTracer {
             log().d(t);
             logLevel = LogServiceTracker.DEBUG_INT;
         }
+        logSample = Math.max(1, CFG_LOG_SAMPLE.value());
+        logMaxPerSpan = CFG_LOG_MAX_PER_SPAN.value();
+        logStackLines = CFG_LOG_STACK_LINES.value();
     }
 
     private synchronized void update() {
@@ -149,12 +194,43 @@ public class JaegerTracerService extends DefaultTracer {
             }
         }
 
-        JaegerTracerFactory factory = new JaegerTracerFactory(config, reporterConfig);
+        if (!CFG_COLLECTOR.value()) collector = null;
+        else if (collector == null || collector.getSize() != CFG_COLLECTOR_SIZE.value())
+            collector = new SpanCollector(CFG_COLLECTOR_SIZE.value());
+
+        JaegerTracerFactory factory =
+                new JaegerTracerFactory(config, reporterConfig, createSampler(), collector);
         setTracerFactory(factory);
 
         reset();
     }
 
+    private Sampler createSampler() {
+        String def = CFG_SAMPLER.value();
+        if (!MString.isSetTrim(def)) {
+            // the remote sampler can't be reached without agent, sample for the collector
+            if (collector != null
+                    && !MString.isSetTrim(System.getProperty("JAEGER_AGENT_HOST"))
+                    && !MString.isSetTrim(System.getProperty("JAEGER_SAMPLER_TYPE")))
+                return new RateLimitingSampler(CFG_COLLECTOR_RATE.value());
+            return null;
+        }
+        int pos = def.indexOf(':');
+        String type = (pos < 0 ? def : def.substring(0, pos)).trim().toLowerCase();
+        double param = pos < 0 ? 1 : MCast.todouble(def.substring(pos + 1).trim(), 1);
+        switch (type) {
+            case "const":
+                return new ConstSampler(param != 0);
+            case "probabilistic":
+                return new ProbabilisticSampler(param);
+            case "ratelimiting":
+                return new RateLimitingSampler(param);
+            default:
+                logi("Unknown sampler " + def);
+                return null;
+        }
+    }
+
     /**
      * If service is initialized the usage of log() will cause in a loop. Therefore it will print
      * the log messages instead of logging.
@@ -172,31 +248,108 @@ public class JaegerTracerService extends DefaultTracer {
     }
 
     private void logEvent(PaxLoggingEvent e) {
+        int level = e.getLevel().toInt();
+        if (level > logLevel) return;
         Span span = current();
         if (span == null) return;
-        if (e.getLevel().toInt() > logLevel) return;
-
-        Map<String, String> fields = new HashMap<>();
-        fields.put("level", e.getLevel().toString());
-        fields.put("message", e.getMessage());
-        fields.put("logger", e.getLoggerName());
-        fields.put("thread", e.getThreadName());
-        //        fields.put("loggerClass",e.getFQNOfLoggerClass());
+        SpanContext context = span.context();
+        if (!(context instanceof JaegerSpanContext) || !((JaegerSpanContext) context).isSampled())
+            return;
+
+        boolean error = level >= PaxLogger.LEVEL_ERROR;
         String[] stack = e.getThrowableStrRep();
-        if (stack != null) {
-            fields.put("stack", MString.join(stack, '\n'));
-            span.setTag("error", true);
-            fields.put("event", "error");
-            fields.put("error.kind", "exception");
-        }
-        if (e.getLevel().toInt() >= PaxLogger.LEVEL_ERROR) {
-            span.setTag("error", true);
-            fields.put("event", "error");
+        if (stack != null || error) span.setTag("error", true);
+        // errors are never sampled out
+        if (!error
+                && stack == null
+                && logSample > 1
+                && logSampleCounter.incrementAndGet() % logSample != 0) return;
+
+        if (logMaxPerSpan > 0) {
+            int count =
+                    logCounter
+                            .computeIfAbsent(context, c -> new AtomicInteger())
+                            .incrementAndGet();
+            if (count > logMaxPerSpan) {
+                if (count == logMaxPerSpan + 1) span.setTag("log.capped", true);
+                return;
+            }
         }
-        // PaxLocationInfo location = e.getLocationInformation();
-        // fields.put("location",
-        //		location.getClassName() + "." + location.getMethodName() + "(" + location.getFileName()
-        // + ":" + location.getLineNumber() + ")" );
+
+        // the tracer keeps a reference to the map, use compact immutable maps
+        String levelName = e.getLevel().toString();
+        String message = e.getMessage() == null ? "" : e.getMessage();
+        String logger = e.getLoggerName() == null ? "" : e.getLoggerName();
+        String thread = e.getThreadName() == null ? "" : e.getThreadName();
+        Map<String, Object> fields;
+        if (stack != null)
+            fields =
+                    Map.of(
+                            "level",
+                            levelName,
+                            "message",
+                            message,
+                            "logger",
+                            logger,
+                            "thread",
+                            thread,
+                            "stack",
+                            new LazyStack(stack, logStackLines),
+                            "event",
+                            "error",
+                            "error.kind",
+                            "exception");
+        else if (error)
+            fields =
+                    Map.of(
+                            "level",
+                            levelName,
+                            "message",
+                            message,
+                            "logger",
+                            logger,
+                            "thread",
+                            thread,
+                            "event",
+                            "error");
+        else
+            fields =
+                    Map.of(
+                            "level",
+                            levelName,
+                            "message",
+                            message,
+                            "logger",
+                            logger,
+                            "thread",
+                            thread);
         span.log(fields);
     }
+
+    /** Joins and truncates the stack trace only if the span is reported. */
+    private static class LazyStack {
+        private final String[] stack;
+        private final int maxLines;
+        private String value;
+
+        private LazyStack(String[] stack, int maxLines) {
+            this.stack = stack;
+            this.maxLines = maxLines;
+        }
+
+        @Override
+        public String toString() {
+            if (value != null) return value;
+            int lines = maxLines > 0 ? Math.min(maxLines, stack.length) : stack.length;
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                if (i > 0) out.append('\n');
+                out.append(stack[i]);
+            }
+            if (lines < stack.length)
+                out.append("\n... ").append(stack.length - lines).append(" more");
+            value = out.toString();
+            return value;
+        }
+    }
 }
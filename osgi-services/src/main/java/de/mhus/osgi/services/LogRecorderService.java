@@ -0,0 +1,519 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+
+import de.mhus.lib.core.MApi;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.osgi.api.karaf.LogServiceTracker;
+
+/**
+ * Flight recorder for log events. All events delivered by the log service are written in a
+ * compact binary format into a memory mapped file. The file is divided into segments which are
+ * used as a ring. The file of the previous run is kept as FILE_NAME + ".1" for post mortem
+ * analysis. The recorder is enabled by default with a small file of 4 MB in 16 segments.
+ *
+ * <p>Only events which pass the thresholds of the pax logging configuration are delivered to the
+ * recorder, an appender can't receive events below the logger levels. DEBUG events are not
+ * recorded unless the logger levels are set to DEBUG.
+ *
+ * <p>Writers claim the space of a record with a CAS on the cursor and encode the record without a
+ * lock. The record length is written last, a reader stops at the first record with length 0. A
+ * segment is cleared before it is reused.
+ *
+ * <p>Segment: long sequence, long first time, int segment size, int reserved, records. Record: int
+ * length, long time, byte level, string logger, string thread, string message, string stack.
+ * Strings are stored as unsigned short length and modified utf-8 bytes.
+ */
+@Component(immediate = true)
+public class LogRecorderService extends MLog {
+
+    public static final String FILE_NAME = "logrecorder.bin";
+    private static final int SEGMENT_HEADER = 24;
+    private static final int RECORD_HEADER = 4 + 8 + 1;
+    private static final long ROLLING = 0xffffffffL;
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private static CfgBoolean CFG_ENABLED =
+            new CfgBoolean(LogRecorderService.class, "enabled", true);
+    private static CfgLong CFG_SIZE =
+            new CfgLong(LogRecorderService.class, "size", 4 * 1024 * 1024);
+    private static CfgInt CFG_SEGMENTS = new CfgInt(LogRecorderService.class, "segments", 16);
+    private static CfgInt CFG_MAX_MESSAGE =
+            new CfgInt(LogRecorderService.class, "maxMessage", 4096);
+    private static CfgInt CFG_MAX_STACK = new CfgInt(LogRecorderService.class, "maxStack", 8192);
+
+    public static LogRecorderService instance;
+
+    private LogServiceTracker tracker;
+    private RandomAccessFile file;
+    private volatile MappedByteBuffer buffer;
+    private int segments;
+    private int segmentSize;
+    private int maxMessage;
+    private int maxStack;
+    // sequence of the current segment in the upper, position in the segment in the lower 32 bits
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicInteger users = new AtomicInteger();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    @Activate
+    public void doActivate(ComponentContext ctx) {
+        instance = this;
+        if (!CFG_ENABLED.value()) return;
+        try {
+            open();
+        } catch (Throwable t) {
+            log().e("can't open log recorder", t);
+            return;
+        }
+        tracker = new LogServiceTracker(ctx.getBundleContext(), e -> record(e));
+        tracker.open();
+    }
+
+    @Deactivate
+    public void doDeactivate(ComponentContext ctx) {
+        if (tracker != null) tracker.close();
+        tracker = null;
+        MappedByteBuffer buf = buffer;
+        buffer = null;
+        if (buf != null) {
+            // wait for writers and readers of the current file before unmapping
+            long start = System.currentTimeMillis();
+            while (users.get() > 0 && System.currentTimeMillis() - start < CLOSE_TIMEOUT)
+                Thread.yield();
+            buf.force();
+            if (users.get() == 0) unmap(buf);
+            else log().w("recorder still in use, can't unmap", users.get());
+        }
+        try {
+            if (file != null) file.close();
+        } catch (IOException e) {
+            log().d(e);
+        }
+        file = null;
+        instance = null;
+    }
+
+    private void open() throws IOException {
+        File f = getFile(false);
+        if (f.exists()) {
+            File previous = getFile(true);
+            if (previous.exists() && !previous.delete())
+                log().w("can't delete previous recording", previous);
+            if (!f.renameTo(previous)) log().w("can't keep previous recording", f);
+        }
+        segments = Math.max(2, CFG_SEGMENTS.value());
+        long size = Math.max(1024 * 1024, Math.min(Integer.MAX_VALUE, CFG_SIZE.value()));
+        segmentSize = (int) (size / segments) & ~7;
+        maxMessage = CFG_MAX_MESSAGE.value();
+        maxStack = CFG_MAX_STACK.value();
+        file = new RandomAccessFile(f, "rw");
+        // truncate to clear a file that could not be renamed
+        file.setLength(0);
+        file.setLength((long) segmentSize * segments);
+        MappedByteBuffer buf =
+                file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        startSegment(buf, 1, System.currentTimeMillis());
+        cursor.set((1L << 32) | SEGMENT_HEADER);
+        buffer = buf;
+    }
+
+    /**
+     * Unmap the buffer, otherwise the file stays mapped until the buffer is garbage collected.
+     *
+     * @param buf
+     */
+    private void unmap(ByteBuffer buf) {
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            clazz.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buf);
+        } catch (Throwable t) {
+            log().d("can't unmap", t);
+        }
+    }
+
+    public File getFile(boolean previous) {
+        return MApi.getFile(MApi.SCOPE.DATA, FILE_NAME + (previous ? ".1" : ""));
+    }
+
+    private int segmentStart(long sequence) {
+        return (int) ((sequence - 1) % segments) * segmentSize;
+    }
+
+    private void startSegment(MappedByteBuffer buf, long sequence, long time) {
+        int start = segmentStart(sequence);
+        buf.putLong(start, 0);
+        for (int pos = start + SEGMENT_HEADER; pos < start + segmentSize; pos += 8)
+            buf.putLong(pos, 0);
+        buf.putLong(start + 8, time);
+        buf.putInt(start + 16, segmentSize);
+        buf.putLong(start, sequence);
+    }
+
+    /**
+     * Claim the space for a record. Only the thread which moves the cursor to the next segment
+     * clears it, other writers spin until the segment is ready.
+     *
+     * @return Absolute position of the record
+     */
+    private int claim(MappedByteBuffer buf, int size, long time) {
+        while (true) {
+            long current = cursor.get();
+            long sequence = current >>> 32;
+            long position = current & ROLLING;
+            if (position == ROLLING) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (position + size <= segmentSize) {
+                if (cursor.compareAndSet(current, current + size))
+                    return segmentStart(sequence) + (int) position;
+                continue;
+            }
+            if (!cursor.compareAndSet(current, (sequence << 32) | ROLLING)) continue;
+            sequence++;
+            startSegment(buf, sequence, time);
+            cursor.set((sequence << 32) | (SEGMENT_HEADER + size));
+            return segmentStart(sequence) + SEGMENT_HEADER;
+        }
+    }
+
+    private void record(PaxLoggingEvent e) {
+        users.incrementAndGet();
+        try {
+            MappedByteBuffer buf = buffer;
+            if (buf == null) return;
+            String logger = e.getLoggerName();
+            String thread = e.getThreadName();
+            String message = e.getMessage();
+            String[] stack = e.getThrowableStrRep();
+            int loggerLen = length(logger);
+            int threadLen = length(thread);
+            int messageLen = Math.min(maxMessage, length(message));
+            int stackLen = 0;
+            if (stack != null) for (String line : stack) stackLen += line.length() + 1;
+            stackLen = Math.min(Math.min(maxStack, 0xffff / 3), stackLen);
+            int size =
+                    RECORD_HEADER
+                            + utfLength(logger, loggerLen)
+                            + utfLength(thread, threadLen)
+                            + utfLength(message, messageLen)
+                            + stackUtfLength(stack, stackLen);
+            if (size > segmentSize - SEGMENT_HEADER) {
+                skipped.incrementAndGet();
+                return;
+            }
+            long time = e.getTimeStamp();
+            int start = claim(buf, size, time);
+
+            int pos = start + 4;
+            buf.putLong(pos, time);
+            pos += 8;
+            buf.put(pos, (byte) e.getLevel().getSyslogEquivalent());
+            pos++;
+            pos = putString(buf, pos, logger, loggerLen);
+            pos = putString(buf, pos, thread, threadLen);
+            pos = putString(buf, pos, message, messageLen);
+            putStack(buf, pos, stack, stackLen);
+            // publish the record
+            buf.putInt(start, size - 4);
+            written.incrementAndGet();
+        } finally {
+            users.decrementAndGet();
+        }
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : Math.min(0xffff / 3, value.length());
+    }
+
+    private static int utfLength(char c) {
+        return c > 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+
+    private static int utfLength(String value, int len) {
+        int out = 2;
+        for (int i = 0; i < len; i++) out += utfLength(value.charAt(i));
+        return out;
+    }
+
+    private static int stackUtfLength(String[] stack, int len) {
+        int out = 2;
+        if (stack == null) return out;
+        for (String line : stack) {
+            for (int i = 0; i < line.length() && len > 0; i++, len--)
+                out += utfLength(line.charAt(i));
+            if (len <= 0) break;
+            out++;
+            len--;
+        }
+        return out;
+    }
+
+    private static int putString(ByteBuffer buf, int pos, String value, int len) {
+        int start = pos;
+        pos += 2;
+        for (int i = 0; i < len; i++) pos = putChar(buf, pos, value.charAt(i));
+        buf.putShort(start, (short) (pos - start - 2));
+        return pos;
+    }
+
+    private static int putStack(ByteBuffer buf, int pos, String[] stack, int len) {
+        int start = pos;
+        pos += 2;
+        if (stack != null) {
+            for (String line : stack) {
+                for (int i = 0; i < line.length() && len > 0; i++, len--)
+                    pos = putChar(buf, pos, line.charAt(i));
+                if (len <= 0) break;
+                pos = putChar(buf, pos, '\n');
+                len--;
+            }
+        }
+        buf.putShort(start, (short) (pos - start - 2));
+        return pos;
+    }
+
+    private static int putChar(ByteBuffer buf, int pos, char c) {
+        if (c > 0 && c < 0x80) {
+            buf.put(pos, (byte) c);
+            return pos + 1;
+        }
+        if (c < 0x800) {
+            buf.put(pos, (byte) (0xc0 | (c >> 6)));
+            buf.put(pos + 1, (byte) (0x80 | (c & 0x3f)));
+            return pos + 2;
+        }
+        buf.put(pos, (byte) (0xe0 | (c >> 12)));
+        buf.put(pos + 1, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        buf.put(pos + 2, (byte) (0x80 | (c & 0x3f)));
+        return pos + 3;
+    }
+
+    /**
+     * Read all records in the time window ordered by time.
+     *
+     * @param previous Read the file of the previous run
+     * @param from Start time or 0
+     * @param to End time or 0
+     * @param consumer Receives the records
+     * @throws IOException
+     */
+    public void read(boolean previous, long from, long to, Consumer<Record> consumer)
+            throws IOException {
+        if (previous) {
+            File f = getFile(true);
+            if (!f.exists()) return;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                ByteBuffer buf =
+                        raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                try {
+                    int size = buf.getInt(16);
+                    if (size <= SEGMENT_HEADER || buf.capacity() % size != 0) return;
+                    read(buf, size, from, to, consumer);
+                } finally {
+                    unmap(buf);
+                }
+            }
+            return;
+        }
+        users.incrementAndGet();
+        try {
+            MappedByteBuffer buf = buffer;
+            if (buf == null) return;
+            read(buf.duplicate(), segmentSize, from, to, consumer);
+        } finally {
+            users.decrementAndGet();
+        }
+    }
+
+    private void read(ByteBuffer buf, int size, long from, long to, Consumer<Record> consumer) {
+        int cnt = buf.capacity() / size;
+        // find oldest segment
+        int oldest = 0;
+        long oldestSeq = Long.MAX_VALUE;
+        for (int i = 0; i < cnt; i++) {
+            long seq = buf.getLong(i * size);
+            if (seq > 0 && seq < oldestSeq) {
+                oldestSeq = seq;
+                oldest = i;
+            }
+        }
+        if (oldestSeq == Long.MAX_VALUE) return;
+        for (int i = 0; i < cnt; i++) {
+            int seg = (oldest + i) % cnt;
+            int start = seg * size;
+            if (buf.getLong(start) != oldestSeq + i) break;
+            if (i + 1 < cnt) {
+                // skip if the next segment starts before the window
+                int next = ((seg + 1) % cnt) * size;
+                if (from > 0
+                        && buf.getLong(next) == oldestSeq + i + 1
+                        && buf.getLong(next + 8) < from) continue;
+            }
+            if (to > 0 && buf.getLong(start + 8) > to) break;
+            int pos = start + SEGMENT_HEADER;
+            int end = start + size;
+            while (pos + 4 <= end) {
+                int len = buf.getInt(pos);
+                if (len <= 0 || pos + 4 + len > end) break;
+                try {
+                    Record record = new Record(buf, pos + 4);
+                    if ((from <= 0 || record.time >= from) && (to <= 0 || record.time <= to))
+                        consumer.accept(record);
+                } catch (Throwable t) {
+                    log().d(t);
+                    break;
+                }
+                pos += 4 + len;
+            }
+        }
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getSequence() {
+        return cursor.get() >>> 32;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    public static class Record {
+
+        private long time;
+        private int level;
+        private String logger;
+        private String thread;
+        private String message;
+        private String stack;
+
+        private Record(ByteBuffer buf, int pos) {
+            time = buf.getLong(pos);
+            pos += 8;
+            level = buf.get(pos);
+            pos++;
+            int[] p = new int[] {pos};
+            logger = getString(buf, p);
+            thread = getString(buf, p);
+            message = getString(buf, p);
+            stack = getString(buf, p);
+        }
+
+        private static String getString(ByteBuffer buf, int[] p) {
+            int len = buf.getShort(p[0]) & 0xffff;
+            int pos = p[0] + 2;
+            int end = pos + len;
+            StringBuilder out = new StringBuilder(len);
+            while (pos < end) {
+                int b = buf.get(pos) & 0xff;
+                if (b < 0x80) {
+                    out.append((char) b);
+                    pos++;
+                } else if (b < 0xe0) {
+                    out.append((char) (((b & 0x1f) << 6) | (buf.get(pos + 1) & 0x3f)));
+                    pos += 2;
+                } else {
+                    out.append(
+                            (char)
+                                    (((b & 0x0f) << 12)
+                                            | ((buf.get(pos + 1) & 0x3f) << 6)
+                                            | (buf.get(pos + 2) & 0x3f)));
+                    pos += 3;
+                }
+            }
+            p[0] = end;
+            return out.toString();
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getLevelName() {
+            switch (level) {
+                case LogServiceTracker.ERROR_INT:
+                    return "ERROR";
+                case LogServiceTracker.WARN_INT:
+                    return "WARN";
+                case LogServiceTracker.INFO_INT:
+                    return "INFO";
+                case LogServiceTracker.DEBUG_INT:
+                    return "DEBUG";
+                default:
+                    return level < LogServiceTracker.ERROR_INT ? "FATAL" : "TRACE";
+            }
+        }
+
+        public String getLogger() {
+            return logger;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getStack() {
+            return stack;
+        }
+    }
+}
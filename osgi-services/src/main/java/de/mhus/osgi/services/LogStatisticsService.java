@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.osgi.api.karaf.LogServiceTracker;
+
+/**
+ * Counts log events per logger and level. The logging threads only increment striped counters, a
+ * sampler thread stores the totals every second in a ring to calculate sliding window rates.
+ */
+@Component(immediate = true)
+public class LogStatisticsService extends MLog {
+
+    public static final int WINDOW = 60;
+    public static final String[] LEVELS = new String[] {"ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+
+    private static CfgBoolean CFG_ENABLED =
+            new CfgBoolean(LogStatisticsService.class, "enabled", true);
+
+    public static LogStatisticsService instance;
+
+    private LogServiceTracker tracker;
+    private ScheduledExecutorService sampler;
+    private ConcurrentHashMap<String, LoggerStatistics> loggers = new ConcurrentHashMap<>();
+    private int tick;
+
+    @Activate
+    public void doActivate(ComponentContext ctx) {
+        instance = this;
+        if (!CFG_ENABLED.value()) return;
+        sampler =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "LogStatisticsSampler");
+                            t.setDaemon(true);
+                            return t;
+                        });
+        sampler.scheduleAtFixedRate(() -> sample(), 1, 1, TimeUnit.SECONDS);
+        tracker = new LogServiceTracker(ctx.getBundleContext(), e -> count(e));
+        tracker.open();
+    }
+
+    @Deactivate
+    public void doDeactivate(ComponentContext ctx) {
+        if (tracker != null) tracker.close();
+        tracker = null;
+        if (sampler != null) sampler.shutdownNow();
+        sampler = null;
+        instance = null;
+    }
+
+    private void count(PaxLoggingEvent e) {
+        String name = e.getLoggerName();
+        if (name == null) name = "";
+        LoggerStatistics stat = loggers.get(name);
+        if (stat == null) stat = loggers.computeIfAbsent(name, n -> new LoggerStatistics(n));
+        int level;
+        switch (e.getLevel().getSyslogEquivalent()) {
+            case LogServiceTracker.ERROR_INT:
+                level = 0;
+                break;
+            case LogServiceTracker.WARN_INT:
+                level = 1;
+                break;
+            case LogServiceTracker.INFO_INT:
+                level = 2;
+                break;
+            case LogServiceTracker.DEBUG_INT:
+                level = 3;
+                break;
+            default:
+                level = e.getLevel().getSyslogEquivalent() < LogServiceTracker.ERROR_INT ? 0 : 4;
+        }
+        stat.levels[level].increment();
+        String msg = e.getMessage();
+        long bytes = msg == null ? 0 : msg.length();
+        String[] stack = e.getThrowableStrRep();
+        if (stack != null) for (String line : stack) bytes += line.length() + 1;
+        stat.bytes.add(bytes);
+    }
+
+    private void sample() {
+        int index;
+        synchronized (this) {
+            tick++;
+            index = tick % WINDOW;
+        }
+        for (LoggerStatistics stat : loggers.values()) stat.sample(index);
+    }
+
+    /**
+     * Return a snapshot of all loggers with rates over the given window.
+     *
+     * @param window Window in seconds, maximal WINDOW - 1
+     * @return List of logger rates
+     */
+    public List<LoggerRate> getRates(int window) {
+        window = Math.max(1, Math.min(WINDOW - 1, window));
+        int current;
+        synchronized (this) {
+            current = tick;
+        }
+        int seconds = Math.min(window, current);
+        List<LoggerRate> out = new ArrayList<>(loggers.size());
+        for (LoggerStatistics stat : loggers.values())
+            out.add(stat.getRate(current % WINDOW, (current - seconds) % WINDOW, seconds));
+        return out;
+    }
+
+    public void reset() {
+        loggers.clear();
+    }
+
+    public boolean isEnabled() {
+        return tracker != null;
+    }
+
+    private static class LoggerStatistics {
+
+        private final String name;
+        private final LongAdder[] levels = new LongAdder[LEVELS.length];
+        private final LongAdder bytes = new LongAdder();
+        private final long[] eventRing = new long[WINDOW];
+        private final long[] bytesRing = new long[WINDOW];
+
+        private LoggerStatistics(String name) {
+            this.name = name;
+            for (int i = 0; i < levels.length; i++) levels[i] = new LongAdder();
+        }
+
+        private long events() {
+            long sum = 0;
+            for (LongAdder adder : levels) sum += adder.sum();
+            return sum;
+        }
+
+        private synchronized void sample(int index) {
+            eventRing[index] = events();
+            bytesRing[index] = bytes.sum();
+        }
+
+        private synchronized LoggerRate getRate(int now, int before, int seconds) {
+            LoggerRate rate = new LoggerRate();
+            rate.name = name;
+            rate.levels = new long[levels.length];
+            for (int i = 0; i < levels.length; i++) rate.levels[i] = levels[i].sum();
+            rate.events = events();
+            rate.bytes = bytes.sum();
+            if (seconds > 0) {
+                rate.eventsPerSecond = (double) (eventRing[now] - eventRing[before]) / seconds;
+                rate.bytesPerSecond = (double) (bytesRing[now] - bytesRing[before]) / seconds;
+            }
+            return rate;
+        }
+    }
+
+    public static class LoggerRate {
+
+        private String name;
+        private long events;
+        private long bytes;
+        private long[] levels;
+        private double eventsPerSecond;
+        private double bytesPerSecond;
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Total events per level, index like LEVELS.
+         *
+         * @return Counters
+         */
+        public long[] getLevels() {
+            return levels;
+        }
+
+        public double getEventsPerSecond() {
+            return eventsPerSecond;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+}
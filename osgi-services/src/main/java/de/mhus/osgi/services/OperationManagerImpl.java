@@ -15,9 +15,14 @@
  */
 package de.mhus.osgi.services;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -28,15 +33,25 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 
+import de.mhus.lib.core.MApi;
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MValidator;
+import de.mhus.lib.core.aaa.Aaa;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.logging.ITracer;
 import de.mhus.lib.core.operation.Operation;
+import de.mhus.lib.core.operation.OperationDescription;
 import de.mhus.osgi.api.services.OperationManager;
 import de.mhus.osgi.api.util.MServiceTracker;
+import io.opentracing.Scope;
+import io.opentracing.Span;
 
 @Component(immediate = true)
 public class OperationManagerImpl extends MLog implements OperationManager {
 
+    private static CfgBoolean CFG_TRACE =
+            new CfgBoolean(OperationManagerImpl.class, "traceOperations", false);
+
     MServiceTracker<Operation> operationTracker =
             new MServiceTracker<>(
                     Operation.class,
@@ -63,6 +78,7 @@ public class OperationManagerImpl extends MLog implements OperationManager {
     }
 
     private void add(ServiceReference<Operation> reference, Operation service) {
+        if (CFG_TRACE.value()) service = TracedOperation.create(reference, service);
         operationByPathVersion.put(service.getDescription().getPathVersion(), service);
         operationById.put(service.getDescription().getUuid(), service);
     }
@@ -78,4 +94,79 @@ public class OperationManagerImpl extends MLog implements OperationManager {
     public List<Operation> getOperations() {
         return new ArrayList<>(operationById.values());
     }
+
+    /**
+     * Return the original operation if the operation is wrapped for tracing. If traceOperations is
+     * enabled the registered operations are proxies implementing all interfaces of the original
+     * operation, casts to the implementation class need to unwrap the operation first.
+     *
+     * @param operation
+     * @return The original operation
+     */
+    public static Operation unwrap(Operation operation) {
+        if (operation != null && Proxy.isProxyClass(operation.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(operation);
+            if (handler instanceof TracedOperation) return ((TracedOperation) handler).operation;
+        }
+        return operation;
+    }
+
+    /** Creates a span for each execution of the operation. */
+    private static class TracedOperation implements InvocationHandler {
+
+        private Operation operation;
+        private String bundle;
+
+        private TracedOperation(Operation operation, String bundle) {
+            this.operation = operation;
+            this.bundle = bundle;
+        }
+
+        private static Operation create(ServiceReference<Operation> reference, Operation service) {
+            // keep all interfaces of the operation to not break instanceof checks
+            LinkedHashSet<Class<?>> interfaces = new LinkedHashSet<>();
+            for (Class<?> c = service.getClass(); c != null; c = c.getSuperclass())
+                for (Class<?> i : c.getInterfaces()) interfaces.add(i);
+            try {
+                return (Operation)
+                        Proxy.newProxyInstance(
+                                service.getClass().getClassLoader(),
+                                interfaces.toArray(new Class<?>[interfaces.size()]),
+                                new TracedOperation(
+                                        service, reference.getBundle().getSymbolicName()));
+            } catch (IllegalArgumentException e) {
+                // e.g. not visible interfaces, do not trace
+                MApi.dirtyLogDebug("OperationManagerImpl", "can't trace", service, e);
+                return service;
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("doExecute")) return invoke(method, args);
+            OperationDescription description = operation.getDescription();
+            String path =
+                    description == null
+                            ? operation.getClass().getName()
+                            : description.getPathVersion();
+            try (Scope scope = ITracer.get().start("operation " + path, "operation")) {
+                Span span = ITracer.get().current();
+                if (span != null) {
+                    span.setTag("operation", path);
+                    span.setTag("operation.bundle", bundle);
+                    String user = Aaa.getPrincipal();
+                    if (user != null) span.setTag("operation.user", user);
+                }
+                return invoke(method, args);
+            }
+        }
+
+        private Object invoke(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(operation, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
 }
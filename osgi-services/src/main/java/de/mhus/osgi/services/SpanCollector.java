@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.spi.Reporter;
+
+/**
+ * Collects finished spans in an in-process ring buffer. The collector only receives sampled
+ * spans.
+ */
+public class SpanCollector implements Reporter {
+
+    private SpanRecord[] ring;
+    private int next;
+    private long reported;
+
+    public SpanCollector(int size) {
+        ring = new SpanRecord[Math.max(16, size)];
+    }
+
+    @Override
+    public void report(JaegerSpan span) {
+        Object error = span.getTags().get("error");
+        SpanRecord record =
+                new SpanRecord(
+                        span.getOperationName(),
+                        span.context().toTraceId(),
+                        span.getStart(),
+                        span.getDuration(),
+                        Boolean.TRUE.equals(error));
+        synchronized (this) {
+            ring[next] = record;
+            next = (next + 1) % ring.length;
+            reported++;
+        }
+    }
+
+    @Override
+    public void close() {}
+
+    public synchronized void clear() {
+        Arrays.fill(ring, null);
+        next = 0;
+    }
+
+    /**
+     * Return a copy of the collected spans.
+     *
+     * @return The spans, oldest first
+     */
+    public synchronized List<SpanRecord> getSpans() {
+        ArrayList<SpanRecord> out = new ArrayList<>(ring.length);
+        for (int i = 0; i < ring.length; i++) {
+            SpanRecord record = ring[(next + i) % ring.length];
+            if (record != null) out.add(record);
+        }
+        return out;
+    }
+
+    /**
+     * Return the slowest spans.
+     *
+     * @param max Maximum number of spans
+     * @return Spans ordered by duration
+     */
+    public List<SpanRecord> getSlowest(int max) {
+        List<SpanRecord> spans = getSpans();
+        spans.sort((o1, o2) -> Long.compare(o2.getDuration(), o1.getDuration()));
+        return spans.size() > max ? spans.subList(0, max) : spans;
+    }
+
+    /**
+     * Return latency statistics per operation.
+     *
+     * @return Statistics by operation name
+     */
+    public Map<String, OperationStatistics> getStatistics() {
+        TreeMap<String, List<SpanRecord>> byOperation = new TreeMap<>();
+        for (SpanRecord record : getSpans())
+            byOperation.computeIfAbsent(record.getOperation(), k -> new ArrayList<>()).add(record);
+        TreeMap<String, OperationStatistics> out = new TreeMap<>();
+        for (Map.Entry<String, List<SpanRecord>> entry : byOperation.entrySet())
+            out.put(entry.getKey(), new OperationStatistics(entry.getValue()));
+        return out;
+    }
+
+    public synchronized long getReported() {
+        return reported;
+    }
+
+    public int getSize() {
+        return ring.length;
+    }
+
+    public static class SpanRecord {
+
+        private String operation;
+        private String traceId;
+        private long start;
+        private long duration;
+        private boolean error;
+
+        private SpanRecord(
+                String operation, String traceId, long start, long duration, boolean error) {
+            this.operation = operation;
+            this.traceId = traceId;
+            this.start = start;
+            this.duration = duration;
+            this.error = error;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        /**
+         * Start time in microseconds.
+         *
+         * @return start
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Duration in microseconds.
+         *
+         * @return duration
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isError() {
+            return error;
+        }
+    }
+
+    public static class OperationStatistics {
+
+        private int count;
+        private int errors;
+        private long p50;
+        private long p90;
+        private long p99;
+        private long max;
+
+        private OperationStatistics(List<SpanRecord> records) {
+            long[] durations = new long[records.size()];
+            for (int i = 0; i < durations.length; i++) {
+                durations[i] = records.get(i).getDuration();
+                if (records.get(i).isError()) errors++;
+            }
+            Arrays.sort(durations);
+            count = durations.length;
+            p50 = percentile(durations, 50);
+            p90 = percentile(durations, 90);
+            p99 = percentile(durations, 99);
+            max = durations[durations.length - 1];
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
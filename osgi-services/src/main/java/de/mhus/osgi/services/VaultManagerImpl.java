@@ -53,7 +53,7 @@ public class VaultManagerImpl extends SimpleService {
                         //				MVault vault = MVaultUtil.loadDefault();
                         vault.registerSource(service);
                     }
-                }.start();
+                }.setAsync(true).start();
     }
 
     @Deactivate
@@ -43,7 +43,7 @@ public class DeployServiceManager extends MLog implements ISimpleService {
 
     @Activate
     public void doActivate(ComponentContext ctx) {
-        tracker.start(ctx);
+        tracker.setAsync(true).start(ctx);
     }
 
     @Deactivate
@@ -31,16 +31,33 @@ package de.mhus.osgi.services.ldap;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.Binding;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -54,22 +71,25 @@ import javax.naming.event.NamespaceChangeListener;
 import javax.naming.event.NamingEvent;
 import javax.naming.event.NamingExceptionEvent;
 import javax.naming.event.ObjectChangeListener;
+import javax.naming.ldap.LdapContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChangeListener {
+public class LDAPCache implements Closeable {
 
     private static final ConcurrentMap<LDAPOptions, LDAPCache> CACHES = new ConcurrentHashMap<>();
 
     private static Logger LOGGER = LoggerFactory.getLogger(LDAPLoginModule.class);
 
+    private static final Pattern DN_SEPARATOR = Pattern.compile("\\s*,\\s*");
+
     public static void clear() {
         while (!CACHES.isEmpty()) {
             LDAPOptions options = CACHES.keySet().iterator().next();
             LDAPCache cache = CACHES.remove(options);
             if (cache != null) {
-                cache.clearCache();
+                cache.close();
             }
         }
     }
@@ -77,26 +97,71 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
     public static LDAPCache getCache(LDAPOptions options) {
         LDAPCache cache = CACHES.get(options);
         if (cache == null) {
-            CACHES.putIfAbsent(options, new LDAPCache(options));
-            cache = CACHES.get(options);
+            // the cache owns connections, do not create it twice
+            cache = CACHES.computeIfAbsent(options, o -> new LDAPCache(o));
         }
         return cache;
     }
 
-    private final Map<String, String[]> userDnAndNamespace;
-    private final Map<String, String[]> userRoles;
+    private final EntryMap userDnAndNamespace;
+    private final EntryMap userRoles;
+    // normalized role DN -> user DNs with cached roles from this role or group entry, users
+    // removed from userRoles are removed from the index as well
+    private final ConcurrentHashMap<String, Set<String>> roleIndex = new ConcurrentHashMap<>();
+    // normalized group DN -> DNs of the groups containing it
+    private final EntryMap groupParents;
+    // normalized group DN -> DNs of all groups containing it up to the maximal depth
+    private final EntryMap groupAncestors;
+    // normalized group DN -> role names of the group
+    private final EntryMap groupNames;
     private final LDAPOptions options;
-    private DirContext context;
+    private final Map<String, Set<String>> roleMapping;
+    private final LDAPConnectionPool searchPool;
+    private ExecutorService groupExecutor;
+    private ExecutorService eventExecutor;
+    private LDAPConnectionPool bindPool;
+    private volatile DirContext context;
+    private ScheduledFuture<?> keepAlive;
 
     public LDAPCache(LDAPOptions options) {
         this.options = options;
-        userDnAndNamespace = new HashMap<>();
-        userRoles = new HashMap<>();
+        userDnAndNamespace =
+                new EntryMap(
+                        "users",
+                        options.getCacheTtl(),
+                        options.getCacheNegativeTtl(),
+                        options.getCacheSize());
+        userRoles =
+                new EntryMap(
+                        "roles",
+                        options.getCacheTtl(),
+                        options.getCacheNegativeTtl(),
+                        options.getCacheSize(),
+                        userDns -> unindex(userDns));
+        groupParents =
+                new EntryMap("groupParents", options.getCacheTtl(), 0, options.getCacheSize());
+        groupAncestors =
+                new EntryMap("groupAncestors", options.getCacheTtl(), 0, options.getCacheSize());
+        groupNames = new EntryMap("groupNames", options.getCacheTtl(), 0, options.getCacheSize());
+        // parse once, the mapping is used for each found role
+        Map<String, Set<String>> mapping = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : options.getRoleMapping().entrySet())
+            mapping.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+        roleMapping = Collections.unmodifiableMap(mapping);
+        searchPool = new LDAPConnectionPool(options, "search");
+        long interval = options.getPoolKeepAlive();
+        if (interval > 0) keepAlive = LDAPConnectionPool.schedule(() -> keepAlive(), interval);
     }
 
     @Override
     public synchronized void close() {
         clearCache();
+        LDAPConnectionPool.cancel(keepAlive);
+        keepAlive = null;
+        searchPool.close();
+        if (bindPool != null) bindPool.close();
+        if (groupExecutor != null) groupExecutor.shutdownNow();
+        if (eventExecutor != null) eventExecutor.shutdownNow();
         if (context != null) {
             try {
                 context.close();
@@ -108,7 +173,7 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         }
     }
 
-    private boolean isContextAlive() {
+    private boolean isContextAlive(DirContext context) {
         boolean alive = false;
         if (context != null) {
             try {
@@ -121,14 +186,61 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         return alive;
     }
 
-    public synchronized DirContext open() throws NamingException {
-        if (isContextAlive()) {
-            return context;
+    /** Background check of the event context. Lost events could leave stale entries. */
+    protected void keepAlive() {
+        DirContext current = context;
+        if (current == null || isContextAlive(current)) return;
+        LOGGER.debug("LDAP event context is broken, reconnect with next request");
+        synchronized (this) {
+            if (context == current) context = null;
+        }
+        try {
+            current.close();
+        } catch (NamingException e) {
+            // Ignore
+        }
+        clearCache();
+    }
+
+    /**
+     * Return the context which receives the naming events. Searches are done with pooled
+     * connections. If the keep-alive is disabled the event context is probed with each request.
+     *
+     * @return The event context
+     * @throws NamingException
+     */
+    public DirContext open() throws NamingException {
+        DirContext current = context;
+        if (current != null && keepAlive == null && !isContextAlive(current)) {
+            keepAlive();
+            current = context;
         }
+        if (current != null) return current;
+        synchronized (this) {
+            if (context != null) return context;
+            return openEventContext();
+        }
+    }
+
+    private DirContext openEventContext() throws NamingException {
         clearCache();
-        context = new InitialDirContext(options.getEnv());
+        DirContext newContext = new InitialDirContext(options.getEnv());
+        try {
+            registerListeners(newContext);
+        } catch (NamingException | RuntimeException e) {
+            try {
+                newContext.close();
+            } catch (NamingException e2) {
+                // Ignore
+            }
+            throw e;
+        }
+        context = newContext;
+        return newContext;
+    }
 
-        EventDirContext eventContext = ((EventDirContext) context.lookup(""));
+    private void registerListeners(DirContext newContext) throws NamingException {
+        EventDirContext eventContext = ((EventDirContext) newContext.lookup(""));
 
         final SearchControls constraints = new SearchControls();
         constraints.setSearchScope(SearchControls.SUBTREE_SCOPE);
@@ -136,31 +248,57 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         String filter = options.getUserFilter();
         filter = filter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement("*"));
         filter = filter.replace("\\", "\\\\");
-        eventContext.addNamingListener(options.getUserBaseDn(), filter, constraints, this);
+        eventContext.addNamingListener(
+                options.getUserBaseDn(), filter, constraints, new UserListener());
 
         filter = options.getRoleFilter();
         filter = filter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement("*"));
         filter = filter.replaceAll(Pattern.quote("%dn"), Matcher.quoteReplacement("*"));
         filter = filter.replaceAll(Pattern.quote("%fqdn"), Matcher.quoteReplacement("*"));
         filter = filter.replace("\\", "\\\\");
-        eventContext.addNamingListener(options.getRoleBaseDn(), filter, constraints, this);
+        eventContext.addNamingListener(
+                options.getRoleBaseDn(), filter, constraints, new RoleListener());
+    }
 
-        return context;
+    public String[] getUserDnAndNamespace(String user) throws Exception {
+        return userDnAndNamespace.get(user, () -> doGetUserDnAndNamespace(user));
     }
 
-    public synchronized String[] getUserDnAndNamespace(String user) throws Exception {
-        String[] result = userDnAndNamespace.get(user);
-        if (result == null) {
-            result = doGetUserDnAndNamespace(user);
-            if (result != null) {
-                userDnAndNamespace.put(user, result);
-            }
-        }
-        return result;
+    /**
+     * Verify the credentials with a pooled connection.
+     *
+     * @param principal DN of the user
+     * @param password
+     * @param authentication Authentication mechanism
+     * @return true if valid
+     * @throws NamingException If the directory is not available
+     */
+    public boolean verify(String principal, String password, String authentication)
+            throws NamingException {
+        return getBindPool().bind(principal, password, authentication);
+    }
+
+    private synchronized LDAPConnectionPool getBindPool() {
+        if (bindPool == null) bindPool = new LDAPConnectionPool(options, "bind");
+        return bindPool;
     }
 
     protected String[] doGetUserDnAndNamespace(String user) throws NamingException {
-        DirContext context = open();
+        open();
+        LdapContext context = searchPool.borrow();
+        boolean broken = false;
+        try {
+            return doGetUserDnAndNamespace(context, user);
+        } catch (NamingException e) {
+            broken = LDAPConnectionPool.isBroken(e);
+            throw e;
+        } finally {
+            searchPool.release(context, broken);
+        }
+    }
+
+    private String[] doGetUserDnAndNamespace(DirContext context, String user)
+            throws NamingException {
 
         SearchControls controls = new SearchControls();
         if (options.getUserSearchSubtree()) {
@@ -219,35 +357,79 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         }
     }
 
-    public synchronized String[] getUserRoles(String user, String userDn, String userDnNamespace)
+    public String[] getUserRoles(String user, String userDn, String userDnNamespace)
             throws Exception {
-        String[] result = userRoles.get(userDn);
-        //        if (result == null) {
-        result = doGetUserRoles(user, userDn, userDnNamespace);
-        userRoles.put(userDn, result);
-        //        }
-        return result;
+        return userRoles.get(userDn, () -> doGetUserRoles(user, userDn, userDnNamespace));
     }
 
     protected Set<String> tryMappingRole(String role) {
-        Set<String> roles = new HashSet<>();
-        if (options.getRoleMapping().isEmpty()) {
-            return roles;
-        }
-        Set<String> karafRoles = options.getRoleMapping().get(role);
-        if (karafRoles != null) {
-            // add all mapped roles
-            for (String karafRole : karafRoles) {
-                LOGGER.debug("LDAP role {} is mapped to Karaf role {}", role, karafRole);
-                roles.add(karafRole);
-            }
+        Set<String> karafRoles = roleMapping.get(role);
+        if (karafRoles == null) {
+            return Collections.emptySet();
         }
-        return roles;
+        LOGGER.debug("LDAP role {} is mapped to Karaf roles {}", role, karafRoles);
+        return karafRoles;
     }
 
     private String[] doGetUserRoles(String user, String userDn, String userDnNamespace)
+            throws Exception {
+        open();
+        Map<String, String[]> groups = searchRoles(user, userDn, userDnNamespace);
+        if (options.getRoleNested() && !groups.isEmpty()) {
+            for (String groupDn : new ArrayList<>(groups.keySet())) {
+                for (String ancestor : getGroupAncestors(groupDn)) {
+                    if (groups.containsKey(ancestor)) continue;
+                    String[] names = getGroupNames(ancestor);
+                    if (names != null) groups.put(ancestor, names);
+                }
+            }
+        }
+
+        Set<String> rolesList = new LinkedHashSet<>();
+        for (Map.Entry<String, String[]> group : groups.entrySet()) {
+            roleIndex.compute(
+                    normalize(group.getKey()),
+                    (k, v) -> {
+                        if (v == null) v = ConcurrentHashMap.newKeySet();
+                        v.add(userDn);
+                        return v;
+                    });
+            for (String role : group.getValue()) {
+                LOGGER.debug("User {} is a member of role {}", user, role);
+                // handle role mapping
+                Set<String> roleMappings = tryMappingRole(role);
+                if (roleMappings.isEmpty()) {
+                    rolesList.add(role);
+                } else {
+                    rolesList.addAll(roleMappings);
+                }
+            }
+        }
+        return rolesList.toArray(new String[rolesList.size()]);
+    }
+
+    /**
+     * Search the role entries with the role filter using a pooled connection.
+     *
+     * @return DN of the role entries and the role names
+     */
+    private Map<String, String[]> searchRoles(String user, String userDn, String userDnNamespace)
+            throws NamingException {
+        LdapContext context = searchPool.borrow();
+        boolean broken = false;
+        try {
+            return searchRoles(context, user, userDn, userDnNamespace);
+        } catch (NamingException e) {
+            broken = LDAPConnectionPool.isBroken(e);
+            throw e;
+        } finally {
+            searchPool.release(context, broken);
+        }
+    }
+
+    private Map<String, String[]> searchRoles(
+            DirContext context, String user, String userDn, String userDnNamespace)
             throws NamingException {
-        DirContext context = open();
 
         SearchControls controls = new SearchControls();
         if (options.getRoleSearchSubtree()) {
@@ -271,10 +453,11 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         NamingEnumeration<?> namingEnumeration =
                 context.search(options.getRoleBaseDn(), filter, controls);
         try {
-            List<String> rolesList = new ArrayList<>();
+            Map<String, String[]> groups = new LinkedHashMap<>();
             while (namingEnumeration.hasMore()) {
                 SearchResult result = (SearchResult) namingEnumeration.next();
                 LOGGER.debug("*** Found " + result);
+                List<String> names = new ArrayList<>();
                 Attributes attributes = result.getAttributes();
                 Attribute roles1 = attributes.get(options.getRoleNameAttribute());
                 if (roles1 != null) {
@@ -282,21 +465,16 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
                     for (int i = 0; i < roles1.size(); i++) {
                         String role = (String) roles1.get(i);
                         if (role != null) {
-                            LOGGER.debug("User {} is a member of role {}", user, role);
-                            // handle role mapping
-                            Set<String> roleMappings = tryMappingRole(role);
-                            if (roleMappings.isEmpty()) {
-                                rolesList.add(role);
-                            } else {
-                                for (String roleMapped : roleMappings) {
-                                    rolesList.add(roleMapped);
-                                }
-                            }
+                            names.add(role);
                         }
                     }
                 }
+                String groupDn = result.getNameInNamespace();
+                String[] groupRoles = names.toArray(new String[names.size()]);
+                groupNames.put(normalize(groupDn), groupRoles);
+                groups.put(groupDn, groupRoles);
             }
-            return rolesList.toArray(new String[rolesList.size()]);
+            return groups;
         } finally {
             if (namingEnumeration != null) {
                 try {
@@ -308,33 +486,651 @@ public class LDAPCache implements Closeable, NamespaceChangeListener, ObjectChan
         }
     }
 
-    @Override
-    public void objectAdded(NamingEvent evt) {
-        clearCache();
+    /**
+     * Return the groups containing the group up to the maximal nesting depth. The result is
+     * shared by all users of the group. The groups of one level are searched in parallel.
+     */
+    private String[] getGroupAncestors(String groupDn) throws Exception {
+        return groupAncestors.get(normalize(groupDn), () -> doGetGroupAncestors(groupDn));
     }
 
-    @Override
-    public void objectRemoved(NamingEvent evt) {
-        clearCache();
+    private String[] doGetGroupAncestors(String groupDn) throws Exception {
+        Set<String> visited = new HashSet<>();
+        visited.add(normalize(groupDn));
+        List<String> ancestors = new ArrayList<>();
+        List<String> level = Collections.singletonList(groupDn);
+        int maxDepth = options.getRoleNestedDepth();
+        for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+            List<String> next = new ArrayList<>();
+            for (String[] parents : getGroupParents(level)) {
+                for (String parent : parents) {
+                    // ignore cycles
+                    if (visited.add(normalize(parent))) next.add(parent);
+                }
+            }
+            ancestors.addAll(next);
+            level = next;
+        }
+        if (!level.isEmpty())
+            LOGGER.debug("Nesting of group {} is deeper than {} levels", groupDn, maxDepth);
+        return ancestors.toArray(new String[ancestors.size()]);
     }
 
-    @Override
-    public void objectRenamed(NamingEvent evt) {
-        clearCache();
+    /**
+     * Return the role names of the group. The names are cached by the role searches, if they are
+     * expired the group entry is read.
+     *
+     * @return The names or null if the entry can't be read
+     */
+    private String[] getGroupNames(String groupDn) {
+        try {
+            return groupNames.get(normalize(groupDn), () -> readGroupNames(groupDn));
+        } catch (Exception e) {
+            LOGGER.debug("Can't read group {}: {}", groupDn, e.getMessage());
+            return null;
+        }
     }
 
-    @Override
-    public void objectChanged(NamingEvent evt) {
-        clearCache();
+    private String[] readGroupNames(String groupDn) throws NamingException {
+        String attributeName = options.getRoleNameAttribute();
+        LdapContext context = searchPool.borrow();
+        boolean broken = false;
+        try {
+            Attribute attribute =
+                    context.getAttributes(groupDn, new String[] {attributeName})
+                            .get(attributeName);
+            List<String> names = new ArrayList<>();
+            if (attribute != null) {
+                for (int i = 0; i < attribute.size(); i++) {
+                    Object name = attribute.get(i);
+                    if (name instanceof String) names.add((String) name);
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        } catch (NamingException e) {
+            broken = LDAPConnectionPool.isBroken(e);
+            throw e;
+        } finally {
+            searchPool.release(context, broken);
+        }
     }
 
-    @Override
-    public void namingExceptionThrown(NamingExceptionEvent evt) {
-        clearCache();
+    private List<String[]> getGroupParents(List<String> groups) throws Exception {
+        if (groups.size() == 1) return Collections.singletonList(getGroupParents(groups.get(0)));
+        ExecutorService executor = getGroupExecutor();
+        List<Future<String[]>> futures = new ArrayList<>(groups.size());
+        for (String groupDn : groups) futures.add(executor.submit(() -> getGroupParents(groupDn)));
+        List<String[]> result = new ArrayList<>(groups.size());
+        try {
+            for (Future<String[]> future : futures) result.add(future.get());
+        } catch (ExecutionException e) {
+            for (Future<String[]> future : futures) future.cancel(true);
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+        return result;
+    }
+
+    private String[] getGroupParents(String groupDn) throws Exception {
+        return groupParents.get(
+                normalize(groupDn),
+                () -> {
+                    String[] names = groupNames.getIfPresent(normalize(groupDn));
+                    String name = names != null && names.length > 0 ? names[0] : groupDn;
+                    int index =
+                            groupDn.toLowerCase()
+                                    .indexOf("," + options.getRoleBaseDn().toLowerCase());
+                    String dn = index > 0 ? groupDn.substring(0, index) : groupDn;
+                    Set<String> parents = searchRoles(name, dn, groupDn).keySet();
+                    return parents.toArray(new String[parents.size()]);
+                });
+    }
+
+    /** Remove users from the role index, e.g. if the cached roles are evicted. */
+    private void unindex(Collection<String> userDns) {
+        if (userDns.isEmpty()) return;
+        for (String key : roleIndex.keySet())
+            roleIndex.computeIfPresent(
+                    key,
+                    (k, v) -> {
+                        v.removeAll(userDns);
+                        return v.isEmpty() ? null : v;
+                    });
+    }
+
+    private synchronized ExecutorService getEventExecutor() {
+        if (eventExecutor == null)
+            eventExecutor =
+                    Executors.newSingleThreadExecutor(
+                            r -> {
+                                Thread t = new Thread(r, "LDAPEvents");
+                                t.setDaemon(true);
+                                return t;
+                            });
+        return eventExecutor;
     }
 
-    protected synchronized void clearCache() {
+    private synchronized ExecutorService getGroupExecutor() {
+        if (groupExecutor == null)
+            groupExecutor =
+                    Executors.newFixedThreadPool(
+                            Math.max(1, options.getRoleNestedThreads()),
+                            r -> {
+                                Thread t = new Thread(r, "LDAPGroups");
+                                t.setDaemon(true);
+                                return t;
+                            });
+        return groupExecutor;
+    }
+
+    /** Listener for the entries below the user base DN. */
+    private class UserListener implements NamespaceChangeListener, ObjectChangeListener {
+
+        @Override
+        public void objectAdded(NamingEvent evt) {
+            invalidateNotFound();
+        }
+
+        @Override
+        public void objectRemoved(NamingEvent evt) {
+            invalidateUser(evt.getOldBinding());
+        }
+
+        @Override
+        public void objectRenamed(NamingEvent evt) {
+            invalidateUser(evt.getOldBinding());
+            invalidateNotFound();
+        }
+
+        @Override
+        public void objectChanged(NamingEvent evt) {
+            // the login name could be changed as well
+            invalidateUser(
+                    evt.getOldBinding() != null ? evt.getOldBinding() : evt.getNewBinding());
+            invalidateNotFound();
+        }
+
+        @Override
+        public void namingExceptionThrown(NamingExceptionEvent evt) {
+            clearCache();
+        }
+    }
+
+    /** Listener for the entries below the role base DN. */
+    private class RoleListener implements NamespaceChangeListener, ObjectChangeListener {
+
+        @Override
+        public void objectAdded(NamingEvent evt) {
+            invalidateMembers(evt.getNewBinding());
+        }
+
+        @Override
+        public void objectRemoved(NamingEvent evt) {
+            invalidateRole(evt.getOldBinding());
+        }
+
+        @Override
+        public void objectRenamed(NamingEvent evt) {
+            invalidateRole(evt.getOldBinding());
+            invalidateMembers(evt.getNewBinding());
+        }
+
+        @Override
+        public void objectChanged(NamingEvent evt) {
+            // removed members are found in the index, added members in the current entry
+            invalidateRole(evt.getOldBinding() != null ? evt.getOldBinding() : evt.getNewBinding());
+            invalidateMembers(evt.getNewBinding());
+        }
+
+        @Override
+        public void namingExceptionThrown(NamingExceptionEvent evt) {
+            clearCache();
+        }
+    }
+
+    /** A new user could be cached as not found. */
+    protected void invalidateNotFound() {
+        int cnt = userDnAndNamespace.removeIf((user, value) -> value == null);
+        if (cnt > 0) LOGGER.debug("Invalidated {} not found users", cnt);
+    }
+
+    protected void invalidateUser(Binding binding) {
+        String dn = getDn(binding);
+        if (dn == null) {
+            clearCache();
+            return;
+        }
+        String userBaseDn = options.getUserBaseDn();
+        int cnt = userDnAndNamespace.removeIf((user, value) -> value != null && isDn(value[1], dn));
+        cnt += userRoles.removeIf((userDn, value) -> isDn(userDn + "," + userBaseDn, dn));
+        LOGGER.debug("Invalidated {} entries for user {}", cnt, dn);
+    }
+
+    protected void invalidateRole(Binding binding) {
+        String dn = getDn(binding);
+        if (dn == null) {
+            clearRoles();
+            return;
+        }
+        invalidateGroups(dn);
+        int cnt = 0;
+        for (Map.Entry<String, Set<String>> entry : roleIndex.entrySet()) {
+            if (!isDn(entry.getKey(), dn) || !roleIndex.remove(entry.getKey(), entry.getValue()))
+                continue;
+            for (String userDn : entry.getValue()) if (userRoles.remove(userDn)) cnt++;
+        }
+        LOGGER.debug("Invalidated roles of {} users for role {}", cnt, dn);
+    }
+
+    /**
+     * Invalidate the roles of all cached users referenced by the role entry. The entry is read
+     * because the event does not provide the attributes. The read is done in the event executor
+     * to not block the thread delivering the naming events.
+     *
+     * @param binding The new binding of the role entry
+     */
+    protected void invalidateMembers(Binding binding) {
+        if (binding == null) {
+            clearRoles();
+            return;
+        }
+        try {
+            getEventExecutor().execute(() -> doInvalidateMembers(binding));
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private void doInvalidateMembers(Binding binding) {
+        Set<String> values = new HashSet<>();
+        try {
+            LdapContext context = searchPool.borrow();
+            boolean broken = false;
+            try {
+                NamingEnumeration<? extends Attribute> attributes =
+                        context.getAttributes(binding.getName()).getAll();
+                while (attributes.hasMore()) {
+                    NamingEnumeration<?> attrValues = attributes.next().getAll();
+                    while (attrValues.hasMore()) {
+                        Object value = attrValues.next();
+                        if (value instanceof String) values.add(normalize((String) value));
+                    }
+                }
+            } catch (NamingException e) {
+                broken = LDAPConnectionPool.isBroken(e);
+                throw e;
+            } finally {
+                searchPool.release(context, broken);
+            }
+        } catch (NamingException e) {
+            LOGGER.debug("Can't read role {}: {}", binding.getName(), e.getMessage());
+            clearRoles();
+            return;
+        }
+        invalidateGroups(values);
+        String userBaseDn = options.getUserBaseDn();
+        List<String> userDns = new ArrayList<>();
+        userDnAndNamespace.forEach(
+                (user, value) -> {
+                    if (value != null
+                            && (values.contains(normalize(user))
+                                    || values.contains(normalize(value[0]))
+                                    || values.contains(normalize(value[1])))) {
+                        userDns.add(value[0]);
+                    }
+                });
+        // groups added to the role entry
+        for (Map.Entry<String, Set<String>> entry : roleIndex.entrySet()) {
+            if (values.contains(entry.getKey())
+                    && roleIndex.remove(entry.getKey(), entry.getValue())) {
+                userDns.addAll(entry.getValue());
+            }
+        }
+        int cnt = 0;
+        for (String userDn : userDns) if (userRoles.remove(userDn)) cnt++;
+        cnt +=
+                userRoles.removeIf(
+                        (userDn, value) ->
+                                values.contains(normalize(userDn))
+                                        || values.contains(normalize(userDn + "," + userBaseDn)));
+        LOGGER.debug("Invalidated roles of {} users for role {}", cnt, binding.getName());
+    }
+
+    /**
+     * Return the normalized DN of the binding. The name is relative to the event context if the
+     * full name is not provided.
+     */
+    private static String getDn(Binding binding) {
+        if (binding == null) return null;
+        try {
+            return normalize(binding.getNameInNamespace());
+        } catch (UnsupportedOperationException e) {
+            return normalize(binding.getName());
+        }
+    }
+
+    /** Return true if the full DN is the DN or ends with it relative to the event context. */
+    private static boolean isDn(String fullDn, String dn) {
+        String full = normalize(fullDn);
+        return full.equals(dn) || full.startsWith(dn + ",");
+    }
+
+    private static String normalize(String dn) {
+        return DN_SEPARATOR.matcher(dn).replaceAll(",").toLowerCase();
+    }
+
+    public LDAPConnectionPool getSearchPool() {
+        return searchPool;
+    }
+
+    /**
+     * Return the statistics of the user, role and group caches.
+     *
+     * @return List of statistics
+     */
+    public List<Statistics> getStatistics() {
+        List<Statistics> out = new ArrayList<>();
+        for (EntryMap map : getMaps())
+            out.add(new Statistics(map.name, map.map.size(), map.hits.sum(), map.misses.sum()));
+        return out;
+    }
+
+    private EntryMap[] getMaps() {
+        return new EntryMap[] {
+            userDnAndNamespace, userRoles, groupParents, groupAncestors, groupNames
+        };
+    }
+
+    public void resetStatistics() {
+        for (EntryMap map : getMaps()) {
+            map.hits.reset();
+            map.misses.reset();
+        }
+    }
+
+    protected void clearCache() {
         userDnAndNamespace.clear();
+        clearRoles();
+    }
+
+    protected void clearRoles() {
+        clearGroups();
+        groupNames.clear();
+        roleIndex.clear();
         userRoles.clear();
     }
+
+    protected void clearGroups() {
+        groupAncestors.clear();
+        groupParents.clear();
+    }
+
+    /**
+     * Invalidate the group relations of a changed or removed group entry: the entry itself and
+     * all relations containing it.
+     *
+     * @param dn Normalized DN of the group
+     */
+    protected void invalidateGroups(String dn) {
+        BiPredicate<String, String[]> filter = (key, value) -> isDn(key, dn) || contains(value, dn);
+        groupNames.removeIf((key, value) -> isDn(key, dn));
+        int cnt = groupParents.removeIf(filter) + groupAncestors.removeIf(filter);
+        LOGGER.debug("Invalidated {} group relations for group {}", cnt, dn);
+    }
+
+    /**
+     * Invalidate the group relations of new members of a group entry: the parents and ancestors
+     * of the members and all ancestors containing a member.
+     *
+     * @param members Normalized DNs of the members
+     */
+    protected void invalidateGroups(Set<String> members) {
+        int cnt = groupParents.removeIf((key, value) -> members.contains(key));
+        cnt +=
+                groupAncestors.removeIf(
+                        (key, value) -> {
+                            if (members.contains(key)) return true;
+                            for (String ancestor : value)
+                                if (members.contains(normalize(ancestor))) return true;
+                            return false;
+                        });
+        LOGGER.debug("Invalidated {} group relations for new members", cnt);
+    }
+
+    private static boolean contains(String[] dns, String dn) {
+        if (dns == null) return false;
+        for (String value : dns) if (isDn(value, dn)) return true;
+        return false;
+    }
+
+    public static class Statistics {
+
+        private final String name;
+        private final int size;
+        private final long hits;
+        private final long misses;
+
+        private Statistics(String name, int size, long hits, long misses) {
+            this.name = name;
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return name
+                    + ": size="
+                    + size
+                    + " hits="
+                    + hits
+                    + " misses="
+                    + misses
+                    + String.format(" rate=%.1f%%", getHitRate() * 100);
+        }
+    }
+
+    private interface Loader {
+        String[] load() throws Exception;
+    }
+
+    private static class Entry {
+        private final CompletableFuture<String[]> future = new CompletableFuture<>();
+        private volatile long expires = Long.MAX_VALUE;
+
+        private boolean isExpired(long now) {
+            return now > expires;
+        }
+    }
+
+    /**
+     * Concurrent map with time to live per entry, negative caching of null values and a size
+     * bound. Concurrent requests for the same key wait for a single load.
+     */
+    private static class EntryMap {
+
+        private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final String name;
+        private final long ttl;
+        private final long negativeTtl;
+        private final int maxSize;
+        private final Consumer<Collection<String>> removed;
+
+        private EntryMap(String name, long ttl, long negativeTtl, int maxSize) {
+            this(name, ttl, negativeTtl, maxSize, null);
+        }
+
+        /**
+         * @param removed Called with the keys of removed entries, not called by clear()
+         */
+        private EntryMap(
+                String name,
+                long ttl,
+                long negativeTtl,
+                int maxSize,
+                Consumer<Collection<String>> removed) {
+            this.name = name;
+            this.ttl = ttl;
+            this.negativeTtl = negativeTtl;
+            this.maxSize = maxSize;
+            this.removed = removed;
+        }
+
+        private void removed(Collection<String> keys) {
+            if (removed != null && !keys.isEmpty()) removed.accept(keys);
+        }
+
+        private String[] get(String key, Loader loader) throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                long now = System.currentTimeMillis();
+                Entry entry = map.get(key);
+                if (entry == null || entry.isExpired(now)) {
+                    Entry created = new Entry();
+                    Entry[] expired = new Entry[1];
+                    Entry current =
+                            map.compute(
+                                    key,
+                                    (k, v) -> {
+                                        if (v != null && !v.isExpired(now)) return v;
+                                        expired[0] = v;
+                                        return created;
+                                    });
+                    if (current == created) {
+                        misses.increment();
+                        if (expired[0] != null) removed(Collections.singleton(key));
+                        return load(key, created, loader);
+                    }
+                    entry = current;
+                }
+                hits.increment();
+                try {
+                    return entry.future.get();
+                } catch (ExecutionException e) {
+                    // the load of another request failed, a waiter loads once by itself
+                    map.remove(key, entry);
+                    if (attempt == 0) continue;
+                    if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
+        }
+
+        private String[] load(String key, Entry entry, Loader loader) throws Exception {
+            String[] result;
+            try {
+                result = loader.load();
+            } catch (Throwable t) {
+                map.remove(key, entry);
+                entry.future.completeExceptionally(t);
+                throw t;
+            }
+            long entryTtl = result == null ? negativeTtl : ttl;
+            if (entryTtl <= 0) {
+                if (map.remove(key, entry)) removed(Collections.singleton(key));
+            } else entry.expires = System.currentTimeMillis() + entryTtl;
+            entry.future.complete(result);
+            if (maxSize > 0 && map.size() > maxSize) shrink();
+            return result;
+        }
+
+        private void shrink() {
+            long now = System.currentTimeMillis();
+            Set<String> keys = new HashSet<>();
+            for (Map.Entry<String, Entry> e : map.entrySet()) {
+                Entry entry = e.getValue();
+                if (entry.future.isDone() && entry.isExpired(now) && map.remove(e.getKey(), entry))
+                    keys.add(e.getKey());
+            }
+            Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator();
+            int target = maxSize - maxSize / 10;
+            while (map.size() > target && iter.hasNext()) {
+                Map.Entry<String, Entry> e = iter.next();
+                if (e.getValue().future.isDone()) {
+                    iter.remove();
+                    keys.add(e.getKey());
+                }
+            }
+            removed(keys);
+        }
+
+        /**
+         * Remove all loaded entries matching the filter. Running loads are removed as well, they
+         * could return data from before the change.
+         *
+         * @return Number of removed entries
+         */
+        private int removeIf(BiPredicate<String, String[]> filter) {
+            Set<String> keys = new HashSet<>();
+            for (Map.Entry<String, Entry> e : map.entrySet()) {
+                Entry entry = e.getValue();
+                if (!entry.future.isDone()
+                        || entry.future.isCompletedExceptionally()
+                        || filter.test(e.getKey(), entry.future.getNow(null))) {
+                    if (map.remove(e.getKey(), entry)) keys.add(e.getKey());
+                }
+            }
+            removed(keys);
+            return keys.size();
+        }
+
+        private void forEach(BiConsumer<String, String[]> action) {
+            for (Map.Entry<String, Entry> e : map.entrySet()) {
+                CompletableFuture<String[]> future = e.getValue().future;
+                if (future.isDone() && !future.isCompletedExceptionally())
+                    action.accept(e.getKey(), future.getNow(null));
+            }
+        }
+
+        /** Add a loaded value, e.g. found by another search. */
+        private void put(String key, String[] value) {
+            if (ttl <= 0) return;
+            Entry entry = new Entry();
+            entry.expires = System.currentTimeMillis() + ttl;
+            entry.future.complete(value);
+            map.put(key, entry);
+            if (maxSize > 0 && map.size() > maxSize) shrink();
+        }
+
+        private String[] getIfPresent(String key) {
+            Entry entry = map.get(key);
+            if (entry == null
+                    || entry.isExpired(System.currentTimeMillis())
+                    || !entry.future.isDone()
+                    || entry.future.isCompletedExceptionally()) return null;
+            return entry.future.getNow(null);
+        }
+
+        private boolean remove(String key) {
+            if (map.remove(key) == null) return false;
+            removed(Collections.singleton(key));
+            return true;
+        }
+
+        private void clear() {
+            map.clear();
+        }
+    }
 }
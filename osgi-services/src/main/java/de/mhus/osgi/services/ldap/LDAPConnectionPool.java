@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.ldap;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of LDAP connections. Idle connections are checked by a background keep-alive task instead
+ * of probing them before each use.
+ */
+public class LDAPConnectionPool implements Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(LDAPLoginModule.class);
+
+    private static ScheduledExecutorService keepAliveExecutor;
+    private static Set<ScheduledFuture<?>> keepAliveTasks = new HashSet<>();
+
+    private final LDAPOptions options;
+    private final String name;
+    private final int maxSize;
+    private final long timeout;
+    private final LinkedList<LdapContext> idle = new LinkedList<>();
+    private int size;
+    private boolean closed;
+    private ScheduledFuture<?> keepAlive;
+    private long created;
+    private long borrowed;
+    private long discarded;
+
+    public LDAPConnectionPool(LDAPOptions options, String name) {
+        this.options = options;
+        this.name = name;
+        this.maxSize = Math.max(1, options.getPoolSize());
+        this.timeout = options.getPoolTimeout();
+        long interval = options.getPoolKeepAlive();
+        if (interval > 0) keepAlive = schedule(() -> keepAlive(), interval);
+    }
+
+    /**
+     * Schedule a task in the shared keep-alive thread. The task must be canceled with cancel(), the
+     * thread is stopped with the last task.
+     *
+     * @param task
+     * @param interval Interval in milliseconds
+     * @return The future to cancel the task
+     */
+    public static synchronized ScheduledFuture<?> schedule(Runnable task, long interval) {
+        if (keepAliveExecutor == null)
+            keepAliveExecutor =
+                    Executors.newSingleThreadScheduledExecutor(
+                            r -> {
+                                Thread t = new Thread(r, "LDAPKeepAlive");
+                                t.setDaemon(true);
+                                return t;
+                            });
+        ScheduledFuture<?> future =
+                keepAliveExecutor.scheduleWithFixedDelay(
+                        task, interval, interval, TimeUnit.MILLISECONDS);
+        keepAliveTasks.add(future);
+        return future;
+    }
+
+    /**
+     * Cancel a task of the shared keep-alive thread and stop the thread if it was the last task.
+     *
+     * @param future The future returned by schedule() or null
+     */
+    public static synchronized void cancel(ScheduledFuture<?> future) {
+        if (future == null || !keepAliveTasks.remove(future)) return;
+        future.cancel(false);
+        if (keepAliveTasks.isEmpty() && keepAliveExecutor != null) {
+            keepAliveExecutor.shutdown();
+            keepAliveExecutor = null;
+        }
+    }
+
+    /**
+     * Return an idle connection or create a new one. Wait if the pool is exhausted.
+     *
+     * @return The connection
+     * @throws NamingException
+     */
+    public LdapContext borrow() throws NamingException {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (true) {
+                if (closed) throw new ServiceUnavailableException("pool closed: " + name);
+                if (!idle.isEmpty()) {
+                    borrowed++;
+                    return idle.removeFirst();
+                }
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) throw new ServiceUnavailableException("pool exhausted: " + name);
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceUnavailableException("interrupted");
+                }
+            }
+        }
+        // create outside of the lock
+        try {
+            LdapContext context = new InitialLdapContext(options.getEnv(), null);
+            synchronized (this) {
+                created++;
+                borrowed++;
+            }
+            return context;
+        } catch (NamingException | RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return the connection to the pool.
+     *
+     * @param context The connection
+     * @param broken Set true to discard the connection
+     */
+    public void release(LdapContext context, boolean broken) {
+        if (context == null) return;
+        synchronized (this) {
+            if (!broken && !closed) {
+                idle.addFirst(context);
+                notifyAll();
+                return;
+            }
+            size--;
+            discarded++;
+            notifyAll();
+        }
+        closeQuietly(context);
+    }
+
+    /**
+     * Verify the credentials with a pooled connection. The connection is bound with the user
+     * credentials and can be used again for the next verification.
+     *
+     * @param principal The DN of the user
+     * @param password The password
+     * @param authentication The authentication mechanism
+     * @return true if the bind was successful
+     * @throws NamingException If the directory is not available
+     */
+    public boolean bind(String principal, String password, String authentication)
+            throws NamingException {
+        LdapContext context = borrow();
+        boolean broken = true;
+        try {
+            context.addToEnvironment(Context.SECURITY_AUTHENTICATION, authentication);
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+            context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+            context.reconnect(null);
+            broken = false;
+            return true;
+        } catch (CommunicationException | ServiceUnavailableException e) {
+            throw e;
+        } catch (NamingException e) {
+            LOGGER.debug("Bind of {} failed: {}", principal, e.getMessage());
+            return false;
+        } finally {
+            // a failed bind leaves the connection in an undefined state
+            release(context, broken);
+        }
+    }
+
+    /**
+     * Return true if the exception indicates a broken connection.
+     *
+     * @param e
+     * @return true if broken
+     */
+    public static boolean isBroken(NamingException e) {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+    }
+
+    protected void keepAlive() {
+        LinkedList<LdapContext> check;
+        synchronized (this) {
+            if (closed || idle.isEmpty()) return;
+            check = new LinkedList<>(idle);
+            idle.clear();
+        }
+        for (LdapContext context : check) {
+            boolean alive = false;
+            try {
+                context.getAttributes("");
+                alive = true;
+            } catch (Exception e) {
+                LOGGER.debug("Discard dead LDAP connection in pool {}: {}", name, e.getMessage());
+            }
+            release(context, !alive);
+        }
+    }
+
+    @Override
+    public void close() {
+        LinkedList<LdapContext> list;
+        synchronized (this) {
+            closed = true;
+            cancel(keepAlive);
+            keepAlive = null;
+            list = new LinkedList<>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (LdapContext context : list) closeQuietly(context);
+    }
+
+    private static void closeQuietly(LdapContext context) {
+        try {
+            context.close();
+        } catch (NamingException e) {
+            // Ignore
+        }
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized long getBorrowed() {
+        return borrowed;
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
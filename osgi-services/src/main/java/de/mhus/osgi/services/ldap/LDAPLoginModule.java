@@ -140,35 +140,50 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
             throw new LoginException("Can't connect to the LDAP server: " + e.getMessage());
         }
         // step 2: bind the user using the DN
-        DirContext context = null;
-        try {
-            // switch the credentials to the Karaf login user so that we can verify his password is
-            // correct
-            logger.debug("Bind user (authentication).");
-            Hashtable<String, Object> env = options.getEnv();
-            env.put(Context.SECURITY_AUTHENTICATION, authentication);
-            logger.debug(
-                    "Set the security principal for "
-                            + userDnAndNamespace[0]
-                            + ","
-                            + options.getUserBaseDn());
-            env.put(
-                    Context.SECURITY_PRINCIPAL,
-                    userDnAndNamespace[0] + "," + options.getUserBaseDn());
-            env.put(Context.SECURITY_CREDENTIALS, password);
-            logger.debug("Binding the user.");
-            context = new InitialDirContext(env);
-            logger.debug("User " + user + " successfully bound.");
-            context.close();
-        } catch (Exception e) {
-            logger.warn("User " + user + " authentication failed.", e);
-            return false;
-        } finally {
-            if (context != null) {
-                try {
-                    context.close();
-                } catch (Exception e) {
-                    // ignore
+        if (options.getBindPooled()) {
+            String principal = userDnAndNamespace[0] + "," + options.getUserBaseDn();
+            try {
+                logger.debug("Bind user with pooled connection (authentication).");
+                if (!cache.verify(principal, password, authentication)) {
+                    logger.warn("User " + user + " authentication failed.");
+                    return false;
+                }
+                logger.debug("User " + user + " successfully bound.");
+            } catch (Exception e) {
+                logger.warn("User " + user + " authentication failed.", e);
+                return false;
+            }
+        } else {
+            DirContext context = null;
+            try {
+                // switch the credentials to the Karaf login user so that we can verify his
+                // password is correct
+                logger.debug("Bind user (authentication).");
+                Hashtable<String, Object> env = options.getEnv();
+                env.put(Context.SECURITY_AUTHENTICATION, authentication);
+                logger.debug(
+                        "Set the security principal for "
+                                + userDnAndNamespace[0]
+                                + ","
+                                + options.getUserBaseDn());
+                env.put(
+                        Context.SECURITY_PRINCIPAL,
+                        userDnAndNamespace[0] + "," + options.getUserBaseDn());
+                env.put(Context.SECURITY_CREDENTIALS, password);
+                logger.debug("Binding the user.");
+                context = new InitialDirContext(env);
+                logger.debug("User " + user + " successfully bound.");
+                context.close();
+            } catch (Exception e) {
+                logger.warn("User " + user + " authentication failed.", e);
+                return false;
+            } finally {
+                if (context != null) {
+                    try {
+                        context.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
                 }
             }
         }
@@ -71,9 +71,27 @@ public class LDAPOptions {
     public static final String SSL_KEYALIAS = "ssl.keyalias";
     public static final String SSL_TRUSTSTORE = "ssl.truststore";
     public static final String SSL_TIMEOUT = "ssl.timeout";
+    public static final String CACHE_TTL = "cache.ttl";
+    public static final String CACHE_NEGATIVE_TTL = "cache.negative.ttl";
+    public static final String CACHE_SIZE = "cache.size";
+    public static final String POOL_SIZE = "pool.size";
+    public static final String POOL_TIMEOUT = "pool.timeout";
+    public static final String POOL_KEEPALIVE = "pool.keepalive";
+    public static final String BIND_POOLED = "bind.pooled";
+    public static final String ROLE_NESTED = "role.nested";
+    public static final String ROLE_NESTED_DEPTH = "role.nested.depth";
+    public static final String ROLE_NESTED_THREADS = "role.nested.threads";
     public static final String DEFAULT_INITIAL_CONTEXT_FACTORY = "com.sun.jndi.ldap.LdapCtxFactory";
     public static final String DEFAULT_AUTHENTICATION = "simple";
     public static final int DEFAULT_SSL_TIMEOUT = 10;
+    public static final long DEFAULT_CACHE_TTL = 600000;
+    public static final long DEFAULT_CACHE_NEGATIVE_TTL = 30000;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_POOL_TIMEOUT = 10000;
+    public static final long DEFAULT_POOL_KEEPALIVE = 60000;
+    public static final int DEFAULT_ROLE_NESTED_DEPTH = 5;
+    public static final int DEFAULT_ROLE_NESTED_THREADS = 4;
 
     private static Logger LOGGER = LoggerFactory.getLogger(LDAPLoginModule.class);
 
@@ -277,6 +295,105 @@ public class LDAPOptions {
         }
     }
 
+    /**
+     * Time to live of cached user DNs and roles in milliseconds.
+     *
+     * @return ttl
+     */
+    public long getCacheTtl() {
+        return getLong(CACHE_TTL, DEFAULT_CACHE_TTL);
+    }
+
+    /**
+     * Time to live of cached unknown users in milliseconds, 0 disables negative caching.
+     *
+     * @return ttl
+     */
+    public long getCacheNegativeTtl() {
+        return getLong(CACHE_NEGATIVE_TTL, DEFAULT_CACHE_NEGATIVE_TTL);
+    }
+
+    public int getCacheSize() {
+        return (int) getLong(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    public int getPoolSize() {
+        return (int) getLong(POOL_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Maximal time to wait for a pooled connection in milliseconds.
+     *
+     * @return timeout
+     */
+    public long getPoolTimeout() {
+        return getLong(POOL_TIMEOUT, DEFAULT_POOL_TIMEOUT);
+    }
+
+    /**
+     * Interval of the background check of idle connections and the event context in
+     * milliseconds. 0 disables the check, the event context is probed with each request instead.
+     *
+     * @return interval
+     */
+    public long getPoolKeepAlive() {
+        return getLong(POOL_KEEPALIVE, DEFAULT_POOL_KEEPALIVE);
+    }
+
+    /**
+     * Verify user credentials with pooled connections instead of a new connection per login.
+     *
+     * @return true if pooled
+     */
+    public boolean getBindPooled() {
+        return getBoolean(BIND_POOLED);
+    }
+
+    /**
+     * Resolve the groups of the found roles as well. Groups are searched with the role filter,
+     * %u, %dn and %fqdn are replaced with the name and DN of the group.
+     *
+     * @return true if nested groups are resolved
+     */
+    public boolean getRoleNested() {
+        return getBoolean(ROLE_NESTED);
+    }
+
+    /**
+     * Maximal number of nesting levels resolved above the roles of the user.
+     *
+     * @return depth
+     */
+    public int getRoleNestedDepth() {
+        return (int) getLong(ROLE_NESTED_DEPTH, DEFAULT_ROLE_NESTED_DEPTH);
+    }
+
+    /**
+     * Number of threads searching groups of the same nesting level in parallel.
+     *
+     * @return threads
+     */
+    public int getRoleNestedThreads() {
+        return (int) getLong(ROLE_NESTED_THREADS, DEFAULT_ROLE_NESTED_THREADS);
+    }
+
+    private boolean getBoolean(String key) {
+        Object val = options.get(key);
+        if (val instanceof Boolean) return (Boolean) val;
+        return val != null && Boolean.parseBoolean(val.toString());
+    }
+
+    private long getLong(String key, long def) {
+        Object val = options.get(key);
+        if (val instanceof Number) {
+            return ((Number) val).longValue();
+        } else if (val != null) {
+            return Long.parseLong(val.toString().trim());
+        } else {
+            return def;
+        }
+    }
+
     public boolean getAllowEmptyPasswords() {
         return Boolean.parseBoolean((String) options.get(ALLOW_EMPTY_PASSWORDS));
     }
@@ -0,0 +1,489 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.scheduler;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.shiro.subject.Subject;
+
+import de.mhus.lib.core.ITimerTask;
+import de.mhus.lib.core.MCast;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.aaa.Aaa;
+import de.mhus.lib.core.aaa.SubjectEnvironment;
+import de.mhus.lib.core.logging.ITracer;
+import de.mhus.lib.core.schedule.SchedulerJob;
+import de.mhus.lib.core.schedule.SchedulerTimer;
+import de.mhus.lib.core.schedule.TimerTaskInterceptor;
+import de.mhus.osgi.api.scheduler.Overlap.POLICY;
+import de.mhus.osgi.api.scheduler.SchedulerService;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+
+/**
+ * Decouples the execution of a scheduler service from the scheduler thread and applies the
+ * overlap policy if the service is still busy at the next due time.
+ *
+ * <p>The SchedulerJob returns immediately after the hand off, its busy state, thread and
+ * execution times are not the ones of the service. Use the static getters, e.g.
+ * isBusy(SchedulerJob), to get the real execution state of a job. The interceptor of the service
+ * is called around the real execution instead of the hand off.
+ */
+public class OverlapTask extends MLog implements ITimerTask {
+
+    private SchedulerService service;
+    private Executor executor;
+    private POLICY policy;
+    private int maxConcurrent;
+    private SchedulerJob job;
+    private TimerTaskInterceptor interceptor;
+    private String bundle;
+    private String username;
+
+    private int running;
+    private boolean pending;
+    private Object pendingEnvironment;
+    private LinkedList<Execution> executions = new LinkedList<>();
+    private long lastExecutionStart;
+    private long lastExecutionStop;
+
+    private long triggered;
+    private long started;
+    private long skipped;
+    private long queued;
+    private long dropped;
+    private long coalesced;
+    private long released;
+    private int maxRunning;
+
+    public OverlapTask(SchedulerService service, Executor executor, POLICY policy, int concurrent) {
+        this.service = service;
+        this.executor = executor;
+        this.policy = policy;
+        this.maxConcurrent = policy == POLICY.CONCURRENT ? Math.max(1, concurrent) : 1;
+    }
+
+    /**
+     * Parse the policy definition, e.g. skip, queue, coalesce or concurrent:3.
+     *
+     * @param service The service to wrap
+     * @param executor The executor to run the service
+     * @param definition The policy definition
+     * @return The task or null if the definition is not set or not valid
+     */
+    public static OverlapTask create(
+            SchedulerService service, Executor executor, String definition) {
+        if (!MString.isSetTrim(definition)) return null;
+        definition = definition.trim().toLowerCase();
+        int concurrent = 1;
+        if (definition.startsWith("concurrent")) {
+            concurrent = MCast.toint(MString.afterIndex(definition, ':'), 1);
+            definition = "concurrent";
+        }
+        POLICY policy = null;
+        switch (definition) {
+            case "skip":
+                policy = POLICY.SKIP;
+                break;
+            case "queue":
+            case "queue_one":
+                policy = POLICY.QUEUE_ONE;
+                break;
+            case "concurrent":
+                policy = POLICY.CONCURRENT;
+                break;
+            case "coalesce":
+                policy = POLICY.COALESCE;
+                break;
+            default:
+                return null;
+        }
+        return new OverlapTask(service, executor, policy, concurrent);
+    }
+
+    /**
+     * Set the job scheduling this task and the interceptor of the service.
+     *
+     * @param job The job
+     * @param interceptor The interceptor or null
+     */
+    public void setJob(SchedulerJob job, TimerTaskInterceptor interceptor) {
+        this.job = job;
+        this.interceptor = interceptor;
+    }
+
+    /**
+     * Set the owner of the service, used to tag the span of the execution.
+     *
+     * @param bundle Symbolic name of the bundle or null
+     * @param username User of the job or null
+     */
+    public void setOwner(String bundle, String username) {
+        this.bundle = bundle;
+        this.username = username;
+    }
+
+    @Override
+    public void run(Object environment) {
+        synchronized (this) {
+            triggered++;
+            if (running >= maxConcurrent) {
+                switch (policy) {
+                    case QUEUE_ONE:
+                        // keep the first waiting trigger
+                        if (pending) {
+                            dropped++;
+                            return;
+                        }
+                        queued++;
+                        break;
+                    case COALESCE:
+                        // the latest trigger replaces the waiting one
+                        if (pending) coalesced++;
+                        else queued++;
+                        break;
+                    default:
+                        skipped++;
+                        return;
+                }
+                pending = true;
+                pendingEnvironment = environment;
+                return;
+            }
+            running++;
+            started++;
+            maxRunning = Math.max(maxRunning, running);
+        }
+        submit(environment);
+    }
+
+    private void submit(Object environment) {
+        Subject subject = null;
+        try {
+            subject = Aaa.getSubject();
+        } catch (Throwable t) {
+            log().t(t);
+        }
+        final Subject s = subject;
+        final Span parent = currentSpan();
+        try {
+            executor.execute(() -> execute(s, parent, environment));
+        } catch (Throwable t) {
+            log().w("can't submit job", service.getName(), t);
+            synchronized (this) {
+                running--;
+            }
+        }
+    }
+
+    private Span currentSpan() {
+        try {
+            return ITracer.get().current();
+        } catch (Throwable t) {
+            log().t(t);
+            return null;
+        }
+    }
+
+    private void execute(Subject subject, Span parent, Object environment) {
+        while (true) {
+            Execution execution = new Execution(Thread.currentThread());
+            synchronized (this) {
+                executions.add(execution);
+                lastExecutionStart = execution.start;
+            }
+            Span span = TracedTask.follow(parent, service.getName(), bundle, username);
+            try (Scope scope = TracedTask.activate(span)) {
+                runService(subject, environment, span);
+            } finally {
+                if (span != null) span.finish();
+            }
+            synchronized (this) {
+                lastExecutionStop = System.currentTimeMillis();
+                // the slot was freed by release()
+                if (!executions.remove(execution)) return;
+                if (!pending || service.isCanceled()) {
+                    pending = false;
+                    pendingEnvironment = null;
+                    running--;
+                    return;
+                }
+                // run the pending trigger in the same slot
+                pending = false;
+                environment = pendingEnvironment;
+                pendingEnvironment = null;
+                started++;
+            }
+        }
+    }
+
+    private void runService(Subject subject, Object environment, Span span) {
+        TimerTaskInterceptor interceptor = this.interceptor;
+        try {
+            if (interceptor != null && !interceptor.beforeExecution(job, null, false)) return;
+        } catch (Throwable t) {
+            log().w(service.getName(), "interceptor failed", t);
+            return;
+        }
+        boolean isError = false;
+        try {
+            if (subject == null) service.run(environment);
+            else
+                try (SubjectEnvironment access = Aaa.asSubject(subject)) {
+                    service.run(environment);
+                }
+        } catch (Throwable t) {
+            isError = true;
+            if (span != null) {
+                try {
+                    Tags.ERROR.set(span, true);
+                    span.log(Map.of("event", "error", "error.object", t));
+                } catch (Throwable t2) {
+                    log().t(t2);
+                }
+            }
+            if (interceptor != null) {
+                try {
+                    interceptor.onError(job, null, t);
+                } catch (Throwable t2) {
+                    log().d(service.getName(), t2);
+                }
+            }
+            try {
+                service.onError(t);
+            } catch (Throwable t2) {
+                log().d(service.getName(), t2);
+            }
+        } finally {
+            if (!isError && interceptor != null) {
+                try {
+                    interceptor.afterExecution(job, null);
+                } catch (Throwable t) {
+                    log().d(service.getName(), t);
+                }
+            }
+            try {
+                service.onFinal(isError);
+            } catch (Throwable t) {
+                log().d(service.getName(), t);
+            }
+        }
+    }
+
+    /**
+     * Give up waiting for the execution and free its slot. The thread is not stopped, it will not
+     * occupy a slot after returning. A pending trigger is started in the freed slot.
+     *
+     * @param execution The execution to release
+     * @return true if the execution was still running
+     */
+    public boolean release(Execution execution) {
+        Object environment;
+        synchronized (this) {
+            if (!executions.remove(execution)) return false;
+            released++;
+            if (!pending || service.isCanceled()) {
+                pending = false;
+                pendingEnvironment = null;
+                running--;
+                return true;
+            }
+            pending = false;
+            environment = pendingEnvironment;
+            pendingEnvironment = null;
+            started++;
+        }
+        submit(environment);
+        return true;
+    }
+
+    /**
+     * Return the overlap task of the job or null if the job does not wrap one.
+     *
+     * @param job The job
+     * @return The task or null
+     */
+    public static OverlapTask of(SchedulerJob job) {
+        Object task = job.getTask();
+        if (task instanceof TracedTask) task = ((TracedTask) task).getTask();
+        return task instanceof OverlapTask ? (OverlapTask) task : null;
+    }
+
+    /**
+     * Return the running jobs of the timer including jobs with running overlap executions.
+     *
+     * @param timer The timer
+     * @return List of running jobs
+     */
+    public static List<SchedulerJob> getRunningJobs(SchedulerTimer timer) {
+        LinkedList<SchedulerJob> out = new LinkedList<>(timer.getRunningJobs());
+        for (SchedulerJob job : timer.getScheduledJobs()) {
+            OverlapTask task = of(job);
+            if (task != null && task.getRunning() > 0 && !out.contains(job)) out.add(job);
+        }
+        return out;
+    }
+
+    public static boolean isBusy(SchedulerJob job) {
+        OverlapTask task = of(job);
+        return task == null ? job.isBusy() : task.getRunning() > 0;
+    }
+
+    /**
+     * Return the thread of the oldest running execution.
+     *
+     * @param job The job
+     * @return The thread or null
+     */
+    public static Thread getThread(SchedulerJob job) {
+        OverlapTask task = of(job);
+        if (task == null) return job.getThread();
+        List<Execution> list = task.getExecutions();
+        return list.isEmpty() ? null : list.get(0).getThread();
+    }
+
+    public static long getLastExecutionStart(SchedulerJob job) {
+        OverlapTask task = of(job);
+        if (task == null) return job.getLastExecutionStart();
+        List<Execution> list = task.getExecutions();
+        return list.isEmpty() ? task.getLastExecutionStart() : list.get(0).getStart();
+    }
+
+    public static long getLastExecutionStop(SchedulerJob job) {
+        OverlapTask task = of(job);
+        return task == null ? job.getLastExecutionStop() : task.getLastExecutionStop();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log().w(service.getName(), t);
+    }
+
+    @Override
+    public void onFinal(boolean isError) {}
+
+    @Override
+    public boolean isCanceled() {
+        return service.isCanceled();
+    }
+
+    @Override
+    public String getName() {
+        return service.getName();
+    }
+
+    public SchedulerService getService() {
+        return service;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public POLICY getPolicy() {
+        return policy;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized boolean isPending() {
+        return pending;
+    }
+
+    public synchronized long getTriggered() {
+        return triggered;
+    }
+
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized int getMaxRunning() {
+        return maxRunning;
+    }
+
+    public synchronized long getReleased() {
+        return released;
+    }
+
+    /**
+     * Return the running executions, the oldest first.
+     *
+     * @return Copy of the executions
+     */
+    public synchronized List<Execution> getExecutions() {
+        return new LinkedList<>(executions);
+    }
+
+    public synchronized long getLastExecutionStart() {
+        return lastExecutionStart;
+    }
+
+    public synchronized long getLastExecutionStop() {
+        return lastExecutionStop;
+    }
+
+    @Override
+    public String toString() {
+        return service.toString();
+    }
+
+    public static class Execution {
+
+        private final Thread thread;
+        private final long start;
+
+        private Execution(Thread thread) {
+            this.thread = thread;
+            this.start = System.currentTimeMillis();
+        }
+
+        public Thread getThread() {
+            return thread;
+        }
+
+        public long getStart() {
+            return start;
+        }
+    }
+}
@@ -16,17 +16,29 @@
 package de.mhus.osgi.services.scheduler;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.karaf.shell.api.console.Session;
 import org.apache.karaf.shell.api.console.SessionFactory;
 
+import de.mhus.lib.core.MDate;
 import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.MTimerTask;
+import de.mhus.lib.core.logging.ITracer;
 import de.mhus.lib.core.schedule.Scheduler;
 import de.mhus.lib.core.service.TimerFactory;
 import de.mhus.lib.core.service.TimerIfc;
 import de.mhus.osgi.api.MOsgi;
 import de.mhus.osgi.api.services.ISimpleService;
+import io.opentracing.Scope;
+import io.opentracing.Span;
 
 public class ScheduleGogo extends MLog implements ISimpleService {
 
@@ -35,6 +47,13 @@ public class ScheduleGogo extends MLog implements ISimpleService {
     private TimerIfc timer;
     private MTimerTask job;
     private String name;
+    private int maxHistory = 20;
+    private int maxOutputSize = 64 * 1024;
+    private LinkedList<GogoSession> pool = new LinkedList<>();
+    private LinkedList<RunRecord> history = new LinkedList<>();
+    private long runCount;
+    private long errorCount;
+    private long totalDuration;
 
     public String getInterval() {
         return interval;
@@ -72,26 +91,80 @@ public class ScheduleGogo extends MLog implements ISimpleService {
         if (command == null || timer == null) return;
         log().d(name, "execute", command);
 
-        //        StreamToLogAdapter out = new StreamToLogAdapter(LEVEL.INFO, null);
-        //        StreamToLogAdapter err = new StreamToLogAdapter(LEVEL.ERROR, null);
-        try {
-            SessionFactory commandProcessor = MOsgi.getService(SessionFactory.class);
+        long start = System.currentTimeMillis();
+        GogoSession session = null;
+        Throwable error = null;
+        try (Scope scope = TracedTask.start(name, null, null)) {
+            Span span = ITracer.get().current();
+            if (span != null) span.setTag("gogo.command", command);
+            session = acquireSession();
+            session.execute(command);
+        } catch (Throwable t) {
+            log().w(name, t);
+            error = t;
+        }
+        long duration = System.currentTimeMillis() - start;
+        String output = session == null ? "" : session.getOutput();
+        addRecord(new RunRecord(start, duration, output, error));
+        log().d(name, "executed", command, duration);
+        if (session != null) {
+            // a broken session should not be reused
+            if (error == null) releaseSession(session);
+            else session.close();
+        }
+    }
 
-            ByteArrayInputStream in = new ByteArrayInputStream(new byte[0]);
+    private GogoSession acquireSession() throws Exception {
+        synchronized (pool) {
+            GogoSession session = pool.poll();
+            if (session != null) return session;
+        }
+        SessionFactory commandProcessor = MOsgi.getService(SessionFactory.class);
+        return new GogoSession(commandProcessor);
+    }
 
-            Session commandSession = commandProcessor.create(in, System.out, System.err);
+    private void releaseSession(GogoSession session) {
+        synchronized (pool) {
+            if (timer != null) {
+                pool.add(session);
+                return;
+            }
+        }
+        session.close();
+    }
 
-            commandSession.put("interactive.mode", false);
-            commandSession.put("APPLICATION", System.getProperty("karaf.name", "root"));
-            commandSession.put("USER", "karaf");
+    private void closeSessions() {
+        synchronized (pool) {
+            pool.forEach(s -> s.close());
+            pool.clear();
+        }
+    }
 
-            commandSession.execute(command);
-        } catch (Throwable t) {
-            log().w(name, t);
+    private void addRecord(RunRecord record) {
+        synchronized (history) {
+            runCount++;
+            totalDuration += record.getDuration();
+            if (record.getError() != null) errorCount++;
+            history.add(record);
+            while (history.size() > Math.max(1, maxHistory)) history.removeFirst();
         }
+    }
 
-        //        out.close();
-        //        err.close();
+    /**
+     * Return a copy of the last executions, the oldest first.
+     *
+     * @return The recorded runs
+     */
+    public List<RunRecord> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    public RunRecord getLastRun() {
+        synchronized (history) {
+            return history.peekLast();
+        }
     }
 
     public void init() {}
@@ -108,6 +181,7 @@ public class ScheduleGogo extends MLog implements ISimpleService {
         }
         timer = null;
         job = null;
+        closeSessions();
     }
 
     public String getName() {
@@ -118,6 +192,22 @@ public class ScheduleGogo extends MLog implements ISimpleService {
         this.name = name;
     }
 
+    public int getMaxHistory() {
+        return maxHistory;
+    }
+
+    public void setMaxHistory(int maxHistory) {
+        this.maxHistory = maxHistory;
+    }
+
+    public int getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    public void setMaxOutputSize(int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
     @Override
     public String getSimpleServiceInfo() {
         return interval;
@@ -127,12 +217,36 @@ public class ScheduleGogo extends MLog implements ISimpleService {
     public String getSimpleServiceStatus() {
         if (timer == null) return "no timer";
         if (job == null) return "not started";
-        return "running";
+        RunRecord last = getLastRun();
+        if (last == null) return "running";
+        return "running, last "
+                + MPeriod.getIntervalAsString(last.getDuration())
+                + (last.getError() == null ? "" : " failed");
     }
 
     @Override
     public void doSimpleServiceCommand(String cmd, Object... param) {
         //		if (cmd.equals("restart"))
+        if (cmd.equals("history")) {
+            for (RunRecord record : getHistory()) System.out.println(record);
+        } else if (cmd.equals("last")) {
+            RunRecord record = getLastRun();
+            if (record == null) return;
+            System.out.println(record);
+            System.out.println(record.getOutput());
+        } else if (cmd.equals("stats")) {
+            synchronized (history) {
+                System.out.println("Runs    : " + runCount);
+                System.out.println("Errors  : " + errorCount);
+                System.out.println(
+                        "Average : "
+                                + (runCount == 0 ? 0 : totalDuration / runCount)
+                                + " ms");
+            }
+            synchronized (pool) {
+                System.out.println("Sessions: " + pool.size());
+            }
+        }
     }
 
     private class MyJob extends MTimerTask {
@@ -147,4 +261,117 @@ public class ScheduleGogo extends MLog implements ISimpleService {
             doExecute();
         }
     }
+
+    /**
+     * A reusable console session. The output streams of the session are bound to a buffer which
+     * is reset before each execution.
+     */
+    private class GogoSession {
+
+        private Session session;
+        private BoundedOutputStream buffer = new BoundedOutputStream();
+
+        GogoSession(SessionFactory commandProcessor) {
+            ByteArrayInputStream in = new ByteArrayInputStream(new byte[0]);
+            PrintStream out = new PrintStream(buffer, true);
+            session = commandProcessor.create(in, out, out);
+            session.put("interactive.mode", false);
+            session.put("APPLICATION", System.getProperty("karaf.name", "root"));
+            session.put("USER", "karaf");
+        }
+
+        void execute(String command) throws Exception {
+            buffer.reset();
+            session.execute(command);
+        }
+
+        String getOutput() {
+            return buffer.toString();
+        }
+
+        void close() {
+            try {
+                session.close();
+            } catch (Throwable t) {
+                log().d(name, "close session", t);
+            }
+        }
+    }
+
+    private class BoundedOutputStream extends OutputStream {
+
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean truncated;
+
+        @Override
+        public synchronized void write(int b) {
+            if (out.size() >= maxOutputSize) {
+                truncated = true;
+                return;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int free = maxOutputSize - out.size();
+            if (len > free) {
+                truncated = true;
+                len = Math.max(0, free);
+            }
+            out.write(b, off, len);
+        }
+
+        public synchronized void reset() {
+            out.reset();
+            truncated = false;
+        }
+
+        @Override
+        public synchronized String toString() {
+            String ret = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            if (truncated) ret = ret + "\n[truncated]";
+            return ret;
+        }
+    }
+
+    public static class RunRecord {
+
+        private long start;
+        private long duration;
+        private String output;
+        private Throwable error;
+
+        public RunRecord(long start, long duration, String output, Throwable error) {
+            this.start = start;
+            this.duration = duration;
+            this.output = output;
+            this.error = error;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return MDate.toIsoDateTime(start)
+                    + " "
+                    + duration
+                    + " ms"
+                    + (error == null ? "" : " " + error);
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.scheduler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.mhus.lib.core.MCast;
+
+/**
+ * An isolated execution pool for a priority class of scheduler services. The number of threads and
+ * the number of waiting executions are limited.
+ */
+public class SchedulerPool implements Executor {
+
+    private String name;
+    private int threads;
+    private int capacity;
+    private int priority;
+    private ThreadPoolExecutor executor;
+    private AtomicLong rejected = new AtomicLong();
+
+    public SchedulerPool(String name, int threads, int capacity, int priority) {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+        this.capacity = Math.max(1, capacity);
+        this.priority = Math.max(Thread.MIN_PRIORITY, Math.min(Thread.MAX_PRIORITY, priority));
+        AtomicInteger cnt = new AtomicInteger();
+        executor =
+                new ThreadPoolExecutor(
+                        this.threads,
+                        this.threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(this.capacity),
+                        r -> {
+                            Thread t =
+                                    new Thread(
+                                            r,
+                                            "de.mhus.lib.karaf.Scheduler."
+                                                    + name
+                                                    + "-"
+                                                    + cnt.incrementAndGet());
+                            t.setDaemon(true);
+                            t.setPriority(this.priority);
+                            return t;
+                        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Parse a pool definition name:threads:capacity[:priority].
+     *
+     * @param definition The definition
+     * @return The pool or null if the definition is not valid
+     */
+    public static SchedulerPool create(String definition) {
+        String[] parts = definition.trim().split(":");
+        if (parts.length < 3 || parts[0].length() == 0) return null;
+        return new SchedulerPool(
+                parts[0],
+                MCast.toint(parts[1], 1),
+                MCast.toint(parts[2], 100),
+                parts.length > 3
+                        ? MCast.toint(parts[3], Thread.NORM_PRIORITY)
+                        : Thread.NORM_PRIORITY);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
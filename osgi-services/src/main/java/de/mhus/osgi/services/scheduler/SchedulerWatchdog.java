@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.scheduler;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import de.mhus.lib.core.MCast;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MPeriod;
+import de.mhus.lib.core.MThread;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.lib.core.schedule.SchedulerJob;
+import de.mhus.lib.core.schedule.SchedulerTimer;
+import de.mhus.osgi.api.MOsgi;
+
+/**
+ * Samples the running jobs of a scheduler and enforces the job timeout. A job exceeding
+ * getTimeoutInMinutes() will be interrupted. If the job is still running after the grace period
+ * the watchdog escalates and - if configured - releases the slot. Executions of an OverlapTask are
+ * released in the task, other jobs are released with releaseBusy(). The hanging thread itself is
+ * not stopped.
+ */
+public class SchedulerWatchdog extends MLog implements Runnable {
+
+    public static final String EVENT_TOPIC_TIMEOUT = "de/mhus/osgi/scheduler/TIMEOUT";
+    public static final String EVENT_TOPIC_ESCALATED = "de/mhus/osgi/scheduler/ESCALATED";
+
+    private static CfgBoolean CFG_ENABLED =
+            new CfgBoolean(TimerFactoryImpl.class, "watchdogEnabled", true);
+    private static CfgLong CFG_INTERVAL =
+            new CfgLong(TimerFactoryImpl.class, "watchdogInterval", 10000);
+    private static CfgLong CFG_GRACE_PERIOD =
+            new CfgLong(
+                    TimerFactoryImpl.class, "watchdogGracePeriod", MPeriod.MINUTE_IN_MILLISECONDS);
+    private static CfgBoolean CFG_RELEASE =
+            new CfgBoolean(TimerFactoryImpl.class, "watchdogRelease", true);
+    private static CfgInt CFG_MAX_RECORDS =
+            new CfgInt(TimerFactoryImpl.class, "watchdogMaxRecords", 100);
+
+    private SchedulerTimer timer;
+    private volatile Thread thread;
+    // job or overlap execution -> record
+    private Map<Object, TimeoutRecord> current = new HashMap<>();
+    private LinkedList<TimeoutRecord> records = new LinkedList<>();
+
+    public SchedulerWatchdog(SchedulerTimer timer) {
+        this.timer = timer;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, "de.mhus.lib.karaf.Scheduler.Watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null) return;
+        Thread t = thread;
+        thread = null;
+        t.interrupt();
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    @Override
+    public void run() {
+        log().d("start watchdog");
+        while (thread == Thread.currentThread()) {
+            MThread.sleep(Math.max(1000, CFG_INTERVAL.value()));
+            if (thread != Thread.currentThread()) break;
+            if (!CFG_ENABLED.value()) continue;
+            try {
+                check();
+            } catch (Throwable t) {
+                log().w("watchdog check failed", t);
+            }
+        }
+        log().d("stop watchdog");
+    }
+
+    /** Check all running jobs once. Can be called manually. */
+    public synchronized void check() {
+        long now = System.currentTimeMillis();
+        Map<Object, TimeoutRecord> next = new HashMap<>();
+        for (SchedulerJob job : OverlapTask.getRunningJobs(timer)) {
+            long timeout = job.getTimeoutInMinutes() * MPeriod.MINUTE_IN_MILLISECONDS;
+            if (timeout <= 0) continue;
+            OverlapTask task = OverlapTask.of(job);
+            if (task == null) {
+                Thread jobThread = job.getThread();
+                if (jobThread != null)
+                    check(job, job, jobThread, job.getLastExecutionStart(), timeout, now, next);
+            } else {
+                for (OverlapTask.Execution execution : task.getExecutions())
+                    check(
+                            job,
+                            execution,
+                            execution.getThread(),
+                            execution.getStart(),
+                            timeout,
+                            now,
+                            next);
+            }
+        }
+        // forget jobs that finished in the meantime
+        current = next;
+    }
+
+    private void check(
+            SchedulerJob job,
+            Object key,
+            Thread jobThread,
+            long start,
+            long timeout,
+            long now,
+            Map<Object, TimeoutRecord> next) {
+        if (start + timeout > now) return;
+
+        TimeoutRecord record = current.get(key);
+        // the job could run again in another thread
+        if (record != null
+                && (record.getThreadId() != jobThread.getId() || record.getStart() != start))
+            record = null;
+        if (record == null) {
+            record = new TimeoutRecord(job, jobThread, start, now);
+            addRecord(record);
+            log().w(
+                            "job timeout reached, interrupt",
+                            job.getName(),
+                            job.getInfo(),
+                            MCast.toString(
+                                    job.getName() + " (threadId=" + jobThread.getId() + ")",
+                                    record.getStackTrace()));
+            jobThread.interrupt();
+            postEvent(EVENT_TOPIC_TIMEOUT, record);
+        } else if (!record.isEscalated()
+                && MPeriod.isTimeOut(record.getDetected(), CFG_GRACE_PERIOD.value())) {
+            record.setEscalated(true);
+            log().e(
+                            "job not stopped after grace period",
+                            job.getName(),
+                            job.getInfo(),
+                            MCast.toString(
+                                    job.getName() + " (threadId=" + jobThread.getId() + ")",
+                                    jobThread.getStackTrace()));
+            if (CFG_RELEASE.value()) release(job, key, jobThread, record);
+            postEvent(EVENT_TOPIC_ESCALATED, record);
+        }
+        next.put(key, record);
+    }
+
+    private void release(SchedulerJob job, Object key, Thread jobThread, TimeoutRecord record) {
+        try {
+            if (key instanceof OverlapTask.Execution) {
+                OverlapTask task = OverlapTask.of(job);
+                record.setReleased(task != null && task.release((OverlapTask.Execution) key));
+            } else if (job.getThread() == jobThread
+                    && job.getLastExecutionStart() == record.getStart()) {
+                // the scheduler runs the job again at the next due time
+                job.releaseBusy(null);
+                record.setReleased(true);
+            }
+        } catch (Throwable t) {
+            log().w("can't release job", record.getName(), t);
+        }
+    }
+
+    private void addRecord(TimeoutRecord record) {
+        synchronized (records) {
+            records.add(record);
+            while (records.size() > Math.max(1, CFG_MAX_RECORDS.value())) records.removeFirst();
+        }
+    }
+
+    private void postEvent(String topic, TimeoutRecord record) {
+        try {
+            EventAdmin admin = MOsgi.getServiceOrNull(EventAdmin.class);
+            if (admin == null) return;
+            Map<String, Object> props = new HashMap<>();
+            props.put("job.name", record.getName());
+            if (record.getInfo() != null) props.put("job.info", record.getInfo());
+            props.put("job.start", record.getStart());
+            props.put("job.timeout", record.getTimeoutInMinutes());
+            props.put("thread.id", record.getThreadId());
+            props.put("released", record.isReleased());
+            admin.postEvent(new Event(topic, props));
+        } catch (Throwable t) {
+            // event admin is optional
+            log().t("can't post event", topic, t);
+        }
+    }
+
+    /**
+     * Return a copy of the detected timeouts, the oldest first.
+     *
+     * @return The timeout records
+     */
+    public List<TimeoutRecord> getRecords() {
+        synchronized (records) {
+            return new LinkedList<>(records);
+        }
+    }
+
+    public static class TimeoutRecord {
+
+        private String name;
+        private String info;
+        private long start;
+        private long detected;
+        private long timeoutInMinutes;
+        private long threadId;
+        private StackTraceElement[] stackTrace;
+        private volatile boolean escalated;
+        private volatile boolean released;
+
+        public TimeoutRecord(SchedulerJob job, Thread thread, long start, long detected) {
+            this.name = job.getName();
+            this.info = job.getInfo();
+            this.start = start;
+            this.timeoutInMinutes = job.getTimeoutInMinutes();
+            this.detected = detected;
+            this.threadId = thread.getId();
+            this.stackTrace = thread.getStackTrace();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getInfo() {
+            return info;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDetected() {
+            return detected;
+        }
+
+        public long getTimeoutInMinutes() {
+            return timeoutInMinutes;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+
+        public boolean isEscalated() {
+            return escalated;
+        }
+
+        void setEscalated(boolean escalated) {
+            this.escalated = escalated;
+        }
+
+        public boolean isReleased() {
+            return released;
+        }
+
+        void setReleased(boolean released) {
+            this.released = released;
+        }
+    }
+}
@@ -18,7 +18,10 @@ package de.mhus.osgi.services.scheduler;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 
 import org.osgi.framework.Bundle;
@@ -39,6 +42,7 @@ import de.mhus.lib.core.MString;
 import de.mhus.lib.core.MSystem;
 import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.aaa.Aaa;
+import de.mhus.lib.core.cfg.CfgString;
 import de.mhus.lib.core.logging.Log;
 import de.mhus.lib.core.schedule.MutableSchedulerJob;
 import de.mhus.lib.core.schedule.Scheduler;
@@ -59,7 +63,22 @@ import de.mhus.osgi.api.util.AbstractServiceTracker;
 public class TimerFactoryImpl extends MLog implements TimerFactory {
 
     protected static Log log = Log.getLog(TimerFactoryImpl.class);
+
+    public static final String DEFAULT_POOL = "default";
+
+    /** Pool definitions name:threads:capacity[:priority], separated by comma */
+    private static CfgString CFG_POOLS =
+            new CfgString(
+                    TimerFactoryImpl.class,
+                    "pools",
+                    "interactive:4:100:7,default:8:1000:5,batch:2:100:1");
+    /** Assign priority classes by job name pattern=class, separated by comma */
+    private static CfgString CFG_PRIORITY_ASSIGNMENTS =
+            new CfgString(TimerFactoryImpl.class, "priorityAssignments", "");
+
     private SchedulerTimer myTimer = new SchedulerTimer("de.mhus.lib.karaf.Scheduler");
+    private SchedulerWatchdog watchdog = new SchedulerWatchdog(myTimer);
+    private Map<String, SchedulerPool> pools = new TreeMap<>();
     private AbstractServiceTracker<SchedulerService> tracker;
     private WeakHashMap<SchedulerService, SchedulerJob> services = new WeakHashMap<>();
     private BundleContext context;
@@ -73,6 +92,11 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
 
         log().i("cancel common timer");
         tracker.stop();
+        watchdog.stop();
+        synchronized (pools) {
+            pools.values().forEach(p -> p.shutdown());
+            pools.clear();
+        }
         myTimer.cancel();
         myTimer = null;
         context = null;
@@ -86,6 +110,8 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
 
         log().i("start common timer");
         myTimer.start();
+        watchdog.start();
+        createPools();
 
         // set to base
         try {
@@ -132,7 +158,7 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
                                         service.getClass().getCanonicalName());
                         addSchedulerService(reference, service);
                     }
-                }.start();
+                }.setAsync(true).start();
 
         // import preSchedule
         preSchedule.forEach(j -> getTimer().schedule(j));
@@ -157,8 +183,27 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
                                 reference);
                 return;
             }
+            // execute the service in the pool of its priority class, default overlap is skip
+            ITimerTask task = service;
+            OverlapTask overlapTask = null;
+            String overlap = service.getOverlapPolicy();
+            if (overlap == null) overlap = MString.valueOf(reference.getProperty("overlap"));
+            SchedulerPool pool = getPool(findPriorityClass(reference, service));
+            if (pool != null) {
+                overlapTask = OverlapTask.create(service, pool, overlap == null ? "skip" : overlap);
+                if (overlapTask == null)
+                    log().w("unknown overlap policy for SchedulerService", service, overlap);
+                else task = overlapTask;
+            }
+            if (username == null) username = MString.valueOf(reference.getProperty("username"));
+            task = new TracedTask(task, reference.getBundle().getSymbolicName(), username);
+            if (overlapTask != null)
+                overlapTask.setOwner(reference.getBundle().getSymbolicName(), username);
             // parse configuration and create job
-            job = Scheduler.createSchedulerJob(interval, service);
+            job = Scheduler.createSchedulerJob(interval, task);
+            // the interceptor must wrap the real execution in the pool, not the hand off
+            if (overlapTask != null && job != null)
+                overlapTask.setJob(job, service.getInterceptor());
         }
         if (username == null) username = MString.valueOf(reference.getProperty("username"));
 
@@ -173,7 +218,7 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
                             + reference.getBundle().getBundleId()
                             + "]");
             TimerTaskInterceptor intercepter = service.getInterceptor();
-            if (intercepter != null) job.setIntercepter(intercepter);
+            if (intercepter != null && OverlapTask.of(job) == null) job.setIntercepter(intercepter);
             services.put(service, job);
             myTimer.schedule(job);
         } else {
@@ -195,6 +240,61 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
         }
     }
 
+    private String findPriorityClass(
+            ServiceReference<SchedulerService> reference, SchedulerService service) {
+        String priority = service.getPriorityClass();
+        if (priority == null) priority = MString.valueOf(reference.getProperty("priority"));
+        if (priority != null) return priority;
+        String name = service.getName();
+        if (name == null) return null;
+        for (String assignment : CFG_PRIORITY_ASSIGNMENTS.value().split(",")) {
+            if (assignment.indexOf('=') < 0) continue;
+            String pattern = MString.beforeIndex(assignment, '=').trim();
+            if (MString.compareFsLikePattern(name, pattern))
+                return MString.afterIndex(assignment, '=').trim();
+        }
+        return null;
+    }
+
+    private void createPools() {
+        synchronized (pools) {
+            for (String definition : CFG_POOLS.value().split(",")) {
+                if (!MString.isSetTrim(definition)) continue;
+                SchedulerPool pool = SchedulerPool.create(definition);
+                if (pool == null) log().w("invalid scheduler pool definition", definition);
+                else pools.put(pool.getName(), pool);
+            }
+            if (!pools.containsKey(DEFAULT_POOL))
+                pools.put(
+                        DEFAULT_POOL,
+                        new SchedulerPool(DEFAULT_POOL, 8, 1000, Thread.NORM_PRIORITY));
+        }
+    }
+
+    /**
+     * Return the pool of the priority class or the default pool if the class is not defined.
+     *
+     * @param name Name of the priority class or null
+     * @return The pool or null if the factory is not active
+     */
+    public SchedulerPool getPool(String name) {
+        synchronized (pools) {
+            if (pools.isEmpty()) return null;
+            SchedulerPool pool = name == null ? null : pools.get(name);
+            if (pool == null) {
+                if (name != null) log().w("priority class not found, use default", name);
+                pool = pools.get(DEFAULT_POOL);
+            }
+            return pool;
+        }
+    }
+
+    public List<SchedulerPool> getPools() {
+        synchronized (pools) {
+            return new LinkedList<>(pools.values());
+        }
+    }
+
     public static SchedulerTimer getScheduler(TimerFactory factory) {
         TimerIfc timer = factory.getTimer();
         if (timer instanceof TimerWrap) {
@@ -441,6 +541,7 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
 
     public void stop() {
         tracker.stop();
+        watchdog.stop();
         MThread.sleep(1000);
         myTimer.clear();
         myTimer.stop();
@@ -448,9 +549,14 @@ public class TimerFactoryImpl extends MLog implements TimerFactory {
 
     public void start() {
         myTimer.start();
+        watchdog.start();
         tracker.start();
     }
 
+    public SchedulerWatchdog getWatchdog() {
+        return watchdog;
+    }
+
     public boolean isRunning() {
         return tracker.isRunning();
     }
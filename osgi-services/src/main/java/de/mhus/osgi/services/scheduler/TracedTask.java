@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.scheduler;
+
+import de.mhus.lib.core.ITimerTask;
+import de.mhus.lib.core.MApi;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.logging.DefaultTracer;
+import de.mhus.lib.core.logging.ITracer;
+import io.opentracing.References;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+
+/**
+ * Creates a span for each run of a scheduled task. The span is active while the task runs, so
+ * work started by the task is traced as child.
+ */
+public class TracedTask extends MLog implements ITimerTask {
+
+    public static final String ACTIVATION = "job";
+
+    private ITimerTask task;
+    private String bundle;
+    private String username;
+
+    public TracedTask(ITimerTask task, String bundle, String username) {
+        this.task = task;
+        this.bundle = bundle;
+        this.username = username;
+    }
+
+    @Override
+    public void run(Object environment) throws Exception {
+        try (Scope scope = start(task.getName(), bundle, username)) {
+            task.run(environment);
+        }
+    }
+
+    /**
+     * Start a span for a job run and set the job tags.
+     *
+     * @param name Name of the job
+     * @param bundle Bundle of the job or null
+     * @param username User of the job or null
+     * @return The scope or null if tracing failed
+     */
+    public static Scope start(String name, String bundle, String username) {
+        try {
+            Scope scope = ITracer.get().start("job " + name, ACTIVATION);
+            Span span = ITracer.get().current();
+            if (span != null) setTags(span, name, bundle, username);
+            return scope;
+        } catch (Throwable t) {
+            MApi.dirtyLogTrace("TracedTask", t);
+            return null;
+        }
+    }
+
+    /**
+     * Create a span for work in another thread following the span of the trigger. Activate it with
+     * activate() and finish it after the work is done.
+     *
+     * @param parent The span of the trigger or null
+     * @param name Name of the job
+     * @param bundle Bundle of the job or null
+     * @param username User of the job or null
+     * @return The span or null if there is no parent or the tracer can't build spans
+     */
+    public static Span follow(Span parent, String name, String bundle, String username) {
+        if (parent == null) return null;
+        Tracer tracer = encapsulatedTracer();
+        if (tracer == null) return null;
+        try {
+            Span span =
+                    tracer.buildSpan("job " + name)
+                            .addReference(References.FOLLOWS_FROM, parent.context())
+                            .start();
+            setTags(span, name, bundle, username);
+            return span;
+        } catch (Throwable t) {
+            MApi.dirtyLogTrace("TracedTask", t);
+            return null;
+        }
+    }
+
+    public static Scope activate(Span span) {
+        if (span == null) return null;
+        Tracer tracer = encapsulatedTracer();
+        if (tracer == null) return null;
+        try {
+            return tracer.activateSpan(span);
+        } catch (Throwable t) {
+            MApi.dirtyLogTrace("TracedTask", t);
+            return null;
+        }
+    }
+
+    // other tracer implementations are not supported, this is not an error
+    private static Tracer encapsulatedTracer() {
+        ITracer tracer = ITracer.get();
+        if (!(tracer instanceof DefaultTracer)) return null;
+        return ((DefaultTracer) tracer).getEncapsulatedTracer();
+    }
+
+    public static void setTags(Span span, String name, String bundle, String username) {
+        span.setTag("job.name", name);
+        if (bundle != null) span.setTag("job.bundle", bundle);
+        if (username != null) span.setTag("job.user", username);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        task.onError(t);
+    }
+
+    @Override
+    public void onFinal(boolean isError) {
+        task.onFinal(isError);
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return task.isCanceled();
+    }
+
+    @Override
+    public String getName() {
+        return task.getName();
+    }
+
+    public ITimerTask getTask() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2018 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.services.ldap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+
+/**
+ * Checks the roles and the cache statistics of LDAPCache against an embedded LDAP server with
+ * synthetic users and groups.
+ *
+ * <p>The throughput benchmark drives LDAPLoginModule and prints logins/s, latency percentiles
+ * and cache hit rates. It is not a regression test and only runs if enabled, use system
+ * properties to scale it:
+ *
+ * <pre>
+ * mvn test -Dtest=LDAPLoginBenchmarkTest -Dldap.benchmark=true -Dldap.benchmark.users=10000 \
+ *   -Dldap.benchmark.logins=100000 -Dldap.benchmark.threads=32 -Dldap.benchmark.nested=true
+ * </pre>
+ */
+public class LDAPLoginBenchmarkTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String PEOPLE_DN = "ou=people," + BASE_DN;
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String ADMIN_DN = "cn=Directory Manager";
+    private static final String ADMIN_PASSWORD = "admin";
+    private static final String PASSWORD = "secret";
+
+    private static final int USERS = Integer.getInteger("ldap.benchmark.users", 200);
+    private static final int GROUPS = Integer.getInteger("ldap.benchmark.groups", 20);
+    private static final int LOGINS = Integer.getInteger("ldap.benchmark.logins", 2000);
+    private static final int THREADS = Integer.getInteger("ldap.benchmark.threads", 8);
+    private static final boolean NESTED = Boolean.getBoolean("ldap.benchmark.nested");
+    private static final boolean BIND_POOLED = Boolean.getBoolean("ldap.benchmark.bindPooled");
+
+    private static InMemoryDirectoryServer server;
+
+    @BeforeAll
+    public static void startServer() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: " + PEOPLE_DN, "objectClass: organizationalUnit", "ou: people");
+        server.add("dn: " + GROUPS_DN, "objectClass: organizationalUnit", "ou: groups");
+
+        // each user is member of two groups, groups are nested as a binary tree
+        Map<Integer, List<String>> members = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            server.add(
+                    "dn: uid=user" + i + "," + PEOPLE_DN,
+                    "objectClass: inetOrgPerson",
+                    "uid: user" + i,
+                    "cn: User " + i,
+                    "sn: " + i,
+                    "userPassword: " + PASSWORD);
+            String dn = "uid=user" + i + "," + PEOPLE_DN;
+            members.computeIfAbsent(i % GROUPS, k -> new ArrayList<>()).add(dn);
+            members.computeIfAbsent(i * 7 % GROUPS, k -> new ArrayList<>()).add(dn);
+        }
+        for (int k = 1; k < GROUPS; k++)
+            members.computeIfAbsent((k - 1) / 2, x -> new ArrayList<>())
+                    .add("cn=group" + k + "," + GROUPS_DN);
+        for (int k = 0; k < GROUPS; k++) {
+            List<String> ldif = new ArrayList<>();
+            ldif.add("dn: cn=group" + k + "," + GROUPS_DN);
+            ldif.add("objectClass: groupOfNames");
+            ldif.add("cn: group" + k);
+            for (String member : members.getOrDefault(k, new ArrayList<>()))
+                ldif.add("member: " + member);
+            server.add(ldif.toArray(new String[ldif.size()]));
+        }
+        server.startListening();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        LDAPCache.clear();
+        if (server != null) server.shutDown(true);
+    }
+
+    @Test
+    public void testRoles() throws Exception {
+        // user5 is member of group5 and group15, the parent of group k is group (k-1)/2
+        LDAPCache.clear();
+        LDAPCache cache = LDAPCache.getCache(new LDAPOptions(createOptions(false)));
+        assertArrayEquals(new String[] {"group15", "group5"}, getRoles(cache, "user5"));
+        assertCached(cache, "user5");
+
+        cache = LDAPCache.getCache(new LDAPOptions(createOptions(true)));
+        assertArrayEquals(
+                new String[] {
+                    "group0", "group1", "group15", "group2", "group3", "group5", "group7"
+                },
+                getRoles(cache, "user5"));
+        // user1 is member of group1 and group7
+        assertArrayEquals(
+                new String[] {"group0", "group1", "group3", "group7"}, getRoles(cache, "user1"));
+        assertCached(cache, "user1");
+    }
+
+    /**
+     * Repeated requests must be served by the cache. A naming exception of the event listeners
+     * (e.g. persistent search not supported) clears the cache asynchronously, so a single request
+     * could miss.
+     */
+    private static void assertCached(LDAPCache cache, String user) throws Exception {
+        String[] roles = getRoles(cache, user);
+        long hits = getStatistics(cache, "roles").getHits();
+        for (int i = 0; i < 3; i++) assertArrayEquals(roles, getRoles(cache, user));
+        assertTrue(getStatistics(cache, "roles").getHits() > hits);
+    }
+
+    private static String[] getRoles(LDAPCache cache, String user) throws Exception {
+        String[] dn = cache.getUserDnAndNamespace(user);
+        return new TreeSet<>(Arrays.asList(cache.getUserRoles(user, dn[0], dn[1])))
+                .toArray(new String[0]);
+    }
+
+    private static LDAPCache.Statistics getStatistics(LDAPCache cache, String name) {
+        for (LDAPCache.Statistics statistics : cache.getStatistics())
+            if (statistics.getName().equals(name)) return statistics;
+        throw new IllegalArgumentException(name);
+    }
+
+    private static Map<String, Object> createOptions(boolean nested) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(LDAPOptions.CONNECTION_URL, "ldap://localhost:" + server.getListenPort());
+        options.put(LDAPOptions.CONNECTION_USERNAME, ADMIN_DN);
+        options.put(LDAPOptions.CONNECTION_PASSWORD, ADMIN_PASSWORD);
+        options.put(LDAPOptions.USER_BASE_DN, PEOPLE_DN);
+        options.put(LDAPOptions.USER_FILTER, "(uid=%u)");
+        options.put(LDAPOptions.USER_SEARCH_SUBTREE, "true");
+        options.put(LDAPOptions.ROLE_BASE_DN, GROUPS_DN);
+        options.put(LDAPOptions.ROLE_FILTER, "(member=%fqdn)");
+        options.put(LDAPOptions.ROLE_NAME_ATTRIBUTE, "cn");
+        options.put(LDAPOptions.ROLE_SEARCH_SUBTREE, "true");
+        options.put(LDAPOptions.ROLE_NESTED, String.valueOf(nested));
+        options.put(LDAPOptions.BIND_POOLED, String.valueOf(BIND_POOLED));
+        options.put(LDAPOptions.POOL_SIZE, String.valueOf(THREADS));
+        return options;
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "ldap.benchmark", matches = "true")
+    public void testLoginThroughput() throws Exception {
+        Map<String, Object> options = createOptions(NESTED);
+
+        LDAPCache.clear();
+        LDAPCache cache = LDAPCache.getCache(new LDAPOptions(options));
+
+        long[] latencies = new long[LOGINS];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    Random random = new Random();
+                                    int index;
+                                    while ((index = next.getAndIncrement()) < LOGINS) {
+                                        String user = "user" + random.nextInt(USERS);
+                                        long loginStart = System.nanoTime();
+                                        if (!login(options, user)) failed.incrementAndGet();
+                                        latencies[index] = System.nanoTime() - loginStart;
+                                    }
+                                    return null;
+                                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        long duration = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println(
+                "LDAP login benchmark: users="
+                        + USERS
+                        + " groups="
+                        + GROUPS
+                        + " threads="
+                        + THREADS
+                        + " nested="
+                        + NESTED
+                        + " bindPooled="
+                        + BIND_POOLED);
+        System.out.println(
+                String.format(
+                        "logins=%d failed=%d logins/s=%.1f",
+                        LOGINS, failed.get(), LOGINS * 1000000000d / duration));
+        System.out.println(
+                String.format(
+                        "latency ms: p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                        percentile(latencies, 50),
+                        percentile(latencies, 90),
+                        percentile(latencies, 99),
+                        latencies[LOGINS - 1] / 1000000d));
+        for (LDAPCache.Statistics statistics : cache.getStatistics())
+            System.out.println(statistics);
+        LDAPConnectionPool pool = cache.getSearchPool();
+        System.out.println(
+                "search pool: size="
+                        + pool.getSize()
+                        + " created="
+                        + pool.getCreated()
+                        + " borrowed="
+                        + pool.getBorrowed()
+                        + " discarded="
+                        + pool.getDiscarded());
+
+        assertEquals(0, failed.get());
+    }
+
+    private static boolean login(Map<String, Object> options, String user) throws Exception {
+        LDAPLoginModule module = new LDAPLoginModule();
+        module.initialize(
+                new Subject(),
+                callbacks -> {
+                    for (Callback callback : callbacks) {
+                        if (callback instanceof NameCallback)
+                            ((NameCallback) callback).setName(user);
+                        else if (callback instanceof PasswordCallback)
+                            ((PasswordCallback) callback).setPassword(PASSWORD.toCharArray());
+                    }
+                },
+                new HashMap<>(),
+                options);
+        return module.login();
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100d * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000000d;
+    }
+}